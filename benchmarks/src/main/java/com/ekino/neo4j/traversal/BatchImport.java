@@ -0,0 +1,315 @@
+/*
+ * Copyright 2016 Frank Pavageau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ekino.neo4j.traversal;
+
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.unsafe.batchinsert.BatchInserter;
+import org.neo4j.unsafe.batchinsert.BatchInserters;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Offline generator of the same tree as {@link PopulateResource}, written directly into a new store directory with the
+ * batch insertion API, without any transaction.
+ *
+ * With the same seed, the values are the same as with {@code /populate}: the tree is generated level by level, from
+ * chunks of leaves with the same random generators. The node records can however be laid out in different orders, to
+ * measure the effect of the locality of the store on the traversals:
+ * <ul>
+ * <li>{@code bfs}: breadth-first, like {@code /populate} with a single writer</li>
+ * <li>{@code dfs}: depth-first (pre-order), each subtree being contiguous</li>
+ * <li>{@code random}: scrambled by a pseudo-random affine permutation of the breadth-first ids</li>
+ * </ul>
+ *
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar com.ekino.neo4j.traversal.BatchImport data/graph.db --depth 6 --layout dfs
+ * </pre>
+ */
+public class BatchImport {
+    private static final int SPILL_THRESHOLD = 1 << 20;
+
+    private final int depth;
+    private final int fanout;
+    private final long seed;
+    private final Layout layout;
+    private long nodes;
+    private long relationships;
+
+    public BatchImport(int depth, int fanout, long seed, Layout layout) {
+        this.depth = depth;
+        this.fanout = fanout;
+        this.seed = seed;
+        this.layout = layout;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0 || args[0].startsWith("-")) {
+            usage();
+            System.exit(1);
+        }
+        File storeDir = new File(args[0]);
+        int depth = 5;
+        int fanout = 4;
+        long seed = new Random().nextLong();
+        String layout = "bfs";
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--depth":
+                    depth = Integer.parseInt(args[++i]);
+                    break;
+                case "--fanout":
+                    fanout = Integer.parseInt(args[++i]);
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(args[++i]);
+                    break;
+                case "--layout":
+                    layout = args[++i];
+                    break;
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    usage();
+                    System.exit(1);
+            }
+        }
+        String[] existing = storeDir.list();
+        if (existing != null && existing.length > 0) {
+            System.err.println("The store directory isn't empty: " + storeDir);
+            System.exit(1);
+        }
+
+        BatchImport batchImport = new BatchImport(depth, fanout, seed, Layout.get(layout, depth, fanout, seed));
+        System.out.println("Importing a tree with a depth of " + depth + " and a fanout of " + fanout + " (" +
+                layout + " layout) from seed " + seed);
+        long start = System.nanoTime();
+        BatchInserter inserter = BatchInserters.inserter(storeDir.getAbsolutePath());
+        try {
+            batchImport.run(inserter);
+        } finally {
+            // Flushes the store, which is part of the import
+            inserter.shutdown();
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("Imported %d nodes and %d relationships in %.1f s: %.0f nodes/s",
+                batchImport.nodes, batchImport.relationships, elapsed, batchImport.nodes / elapsed));
+    }
+
+    private static void usage() {
+        System.out.println("BatchImport store-dir [--depth depth] [--fanout fanout] [--seed seed] " +
+                "[--layout bfs|dfs|random]");
+    }
+
+    /**
+     * Generate the tree like {@link PopulateResource#populate(int, int, long, int)}: the random generators are used in
+     * the same order, only the ids of the nodes depend on the layout.
+     */
+    public void run(BatchInserter inserter) throws IOException {
+        long rootId = layout.rootId();
+        createNode(inserter, rootId, new Random(seed), Labels.Root, Labels.A);
+
+        LeafFrontier leaves = new LeafFrontier(SPILL_THRESHOLD);
+        try {
+            leaves.add(new long[]{rootId});
+            int parentsPerChunk = PopulateResource.parentsPerChunk(fanout);
+            for (int level = 0; level < depth; level++) {
+                boolean keepLeaves = level < depth - 1;
+                LeafFrontier newLeaves = new LeafFrontier(SPILL_THRESHOLD);
+                long chunk = 0;
+                long[] parents;
+                while ((parents = leaves.next(parentsPerChunk)).length > 0) {
+                    Random random = new Random(PopulateResource.chunkSeed(seed, level, chunk++));
+                    long[] chunkLeaves = new long[keepLeaves ? parents.length * fanout * fanout : 0];
+                    int created = 0;
+                    for (long parentId : parents) {
+                        for (int i = 0; i < fanout; i++) {
+                            long bId = layout.childId(parentId, 2 * level, i);
+                            createChild(inserter, parentId, bId, RelationshipTypes.HAS_B, Labels.B, random);
+                            for (int j = 0; j < fanout; j++) {
+                                long aId = layout.childId(bId, 2 * level + 1, j);
+                                createChild(inserter, bId, aId, RelationshipTypes.HAS_A, Labels.A, random);
+                                if (keepLeaves) {
+                                    chunkLeaves[created++] = aId;
+                                }
+                            }
+                        }
+                    }
+                    newLeaves.add(chunkLeaves);
+                }
+                leaves.close();
+                leaves = newLeaves;
+            }
+        } finally {
+            leaves.close();
+        }
+    }
+
+    private void createChild(BatchInserter inserter, long parentId, long childId,
+                             RelationshipType type, Label label, Random random) {
+        createNode(inserter, childId, random, label);
+        inserter.createRelationship(parentId, childId, type, null);
+        relationships++;
+    }
+
+    private void createNode(BatchInserter inserter, long id, Random random, Label... labels) {
+        Map<String, Object> properties = Collections.<String, Object>singletonMap("value", random.nextBoolean());
+        inserter.createNode(id, properties, labels);
+        nodes++;
+    }
+
+    /**
+     * Assignment of the node ids, called with the parents in breadth-first order. The tree is complete, with
+     * {@code 2 * depth} levels of relationships below the root, so the ids can be computed without any lookup.
+     */
+    abstract static class Layout {
+        public static Layout get(String name, int depth, int fanout, long seed) {
+            switch (name) {
+                case "bfs":
+                    return new BreadthFirstLayout();
+                case "dfs":
+                    return new DepthFirstLayout(depth, fanout);
+                case "random":
+                    return new RandomLayout(new BreadthFirstLayout(), size(2 * depth, fanout), seed);
+                default:
+                    throw new IllegalArgumentException("Unknown layout: " + name);
+            }
+        }
+
+        /**
+         * @return The number of nodes in a complete tree of the given height
+         */
+        static long size(int height, int fanout) {
+            long size = 0;
+            long levelSize = 1;
+            for (int i = 0; i <= height; i++) {
+                size += levelSize;
+                levelSize *= fanout;
+            }
+            return size;
+        }
+
+        public abstract long rootId();
+
+        /**
+         * @param parentId The id of the parent
+         * @param parentLevel The level of the parent, 0 for the root
+         * @param index The index of the child among its siblings
+         * @return The id of the child
+         */
+        public abstract long childId(long parentId, int parentLevel, int index);
+    }
+
+    /**
+     * The ids are allocated sequentially, as the parents are visited breadth-first.
+     */
+    private static class BreadthFirstLayout extends Layout {
+        private long nextId;
+
+        @Override
+        public long rootId() {
+            return nextId++;
+        }
+
+        @Override
+        public long childId(long parentId, int parentLevel, int index) {
+            return nextId++;
+        }
+    }
+
+    /**
+     * The id of a node is its pre-order index: the first child follows its parent, and the next ones follow the
+     * subtree of their previous sibling.
+     */
+    private static class DepthFirstLayout extends Layout {
+        private final long[] subtreeSizes;
+
+        public DepthFirstLayout(int depth, int fanout) {
+            int height = 2 * depth;
+            subtreeSizes = new long[height + 1];
+            for (int level = 0; level <= height; level++) {
+                subtreeSizes[level] = size(height - level, fanout);
+            }
+        }
+
+        @Override
+        public long rootId() {
+            return 0;
+        }
+
+        @Override
+        public long childId(long parentId, int parentLevel, int index) {
+            return parentId + 1 + index * subtreeSizes[parentLevel + 1];
+        }
+    }
+
+    /**
+     * The breadth-first ids are scrambled by {@code (a * id + b) mod size}, a bijection as {@code a} and {@code size}
+     * are coprime, which scatters the siblings across the store. Any underlying layout can be scrambled, as it's given
+     * back its own ids, through the inverse permutation {@code (id - b) * a^-1 mod size}.
+     */
+    private static class RandomLayout extends Layout {
+        private final Layout layout;
+        private final long size;
+        private final long a;
+        private final long b;
+        private final long aInverse;
+
+        public RandomLayout(Layout layout, long size, long seed) {
+            if (size > Integer.MAX_VALUE) {
+                // The products must not overflow
+                throw new IllegalArgumentException("Too many nodes for the random layout: " + size);
+            }
+            this.layout = layout;
+            this.size = size;
+            Random random = new Random(seed);
+            long multiplier;
+            do {
+                multiplier = 1 + (long) (random.nextDouble() * (size - 1));
+            } while (gcd(multiplier, size) != 1);
+            a = multiplier;
+            b = (long) (random.nextDouble() * size);
+            aInverse = BigInteger.valueOf(a).modInverse(BigInteger.valueOf(size)).longValue();
+        }
+
+        private static long gcd(long x, long y) {
+            return y == 0 ? x : gcd(y, x % y);
+        }
+
+        @Override
+        public long rootId() {
+            return scramble(layout.rootId());
+        }
+
+        @Override
+        public long childId(long parentId, int parentLevel, int index) {
+            // The underlying layout computes the child from the id it gave the parent, not from the scrambled one
+            return scramble(layout.childId(unscramble(parentId), parentLevel, index));
+        }
+
+        private long scramble(long id) {
+            return (a * id + b) % size;
+        }
+
+        private long unscramble(long id) {
+            return aInverse * ((id - b + size) % size) % size;
+        }
+    }
+}
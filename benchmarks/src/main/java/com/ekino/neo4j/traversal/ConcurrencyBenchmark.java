@@ -0,0 +1,120 @@
+/*
+ * Copyright 2016 Frank Pavageau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ekino.neo4j.traversal;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scaling of the traversals run concurrently on the same tree and the same shared caches, from 1 thread to as many
+ * threads as processors. Each thread counts with its own {@link TrueBNodesCounter} in its own transaction, like the
+ * concurrent requests of the extension, so the only shared state is the database and the caches.
+ *
+ * <pre>
+ * java -jar benchmarks/target/benchmarks.jar ConcurrencyBenchmark
+ * </pre>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class ConcurrencyBenchmark {
+    @State(Scope.Benchmark)
+    public static class Database {
+        @Param({"framework", "ids"})
+        public String engine;
+
+        @Param({"none", "label,property", "bitset"})
+        public String cache;
+
+        @Param({"4"})
+        public int depth;
+
+        @Param({"4"})
+        public int fanout;
+
+        private EmbeddedDatabase database;
+        private TraversalEngine traversalEngine;
+
+        @Setup
+        public void setUp() throws Exception {
+            database = EmbeddedDatabase.populate(depth, fanout);
+            traversalEngine = TraversalEngine.get(engine);
+            Neo4jOperations.clearCache();
+        }
+
+        @TearDown
+        public void tearDown() throws Exception {
+            database.shutdown();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Counter {
+        // Created on first use, as JMH 1.12 can't inject the database into the setup of a state
+        private TrueBNodesCounter counter;
+    }
+
+    @Benchmark
+    @Threads(1)
+    public int count1(Database database, Counter counter) {
+        return count(database, counter);
+    }
+
+    @Benchmark
+    @Threads(2)
+    public int count2(Database database, Counter counter) {
+        return count(database, counter);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int count4(Database database, Counter counter) {
+        return count(database, counter);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public int countMax(Database database, Counter counter) {
+        return count(database, counter);
+    }
+
+    private static int count(Database database, Counter counter) {
+        GraphDatabaseService graphDb = database.database.getGraphDb();
+        if (counter.counter == null) {
+            counter.counter = new TrueBNodesCounter(graphDb, Neo4jOperations.get(database.cache));
+        }
+        try (Transaction ignored = graphDb.beginTx()) {
+            return counter.counter.count(database.traversalEngine, true, 1);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2016 Frank Pavageau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ekino.neo4j.traversal;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.factory.GraphDatabaseBuilder;
+import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+import org.neo4j.graphdb.factory.GraphDatabaseSettings;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Embedded database in a temporary directory, populated by {@link PopulateResource} like the server, and deleted on
+ * shutdown.
+ *
+ * The size of the page cache can be fixed, instead of being derived from the memory of the machine, and the database
+ * restarted on the same directory to empty it.
+ */
+class EmbeddedDatabase {
+    private final Path directory;
+    private final String pageCacheMemory;
+    private GraphDatabaseService graphDb;
+
+    private EmbeddedDatabase(Path directory, String pageCacheMemory) {
+        this.directory = directory;
+        this.pageCacheMemory = pageCacheMemory;
+        start();
+    }
+
+    public static EmbeddedDatabase create() throws IOException {
+        return create(null);
+    }
+
+    /**
+     * @param pageCacheMemory The size of the page cache (e.g. "64m"), or {@code null} for the default of Neo4j
+     */
+    public static EmbeddedDatabase create(String pageCacheMemory) throws IOException {
+        return new EmbeddedDatabase(Files.createTempDirectory("traversal-perfs"), pageCacheMemory);
+    }
+
+    public static EmbeddedDatabase populate(int depth, int fanout) throws IOException {
+        return populate(depth, fanout, null);
+    }
+
+    /**
+     * @param pageCacheMemory The size of the page cache (e.g. "64m"), or {@code null} for the default of Neo4j
+     */
+    public static EmbeddedDatabase populate(int depth, int fanout, String pageCacheMemory) throws IOException {
+        EmbeddedDatabase database = create(pageCacheMemory);
+        new PopulateResource(database.graphDb).populate(depth, fanout);
+        return database;
+    }
+
+    private void start() {
+        GraphDatabaseBuilder builder = new GraphDatabaseFactory().newEmbeddedDatabaseBuilder(directory.toString());
+        if (pageCacheMemory != null) {
+            builder.setConfig(GraphDatabaseSettings.pagecache_memory, pageCacheMemory);
+        }
+        graphDb = builder.newGraphDatabase();
+    }
+
+    /**
+     * Stop the database and start it again on the same store, with an empty page cache, the JVM (and its compiled code)
+     * staying warm. The OS file cache is left as is.
+     */
+    public void restart() {
+        graphDb.shutdown();
+        start();
+    }
+
+    public GraphDatabaseService getGraphDb() {
+        return graphDb;
+    }
+
+    public void shutdown() throws IOException {
+        graphDb.shutdown();
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
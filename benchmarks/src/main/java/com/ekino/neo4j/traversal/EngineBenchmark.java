@@ -0,0 +1,96 @@
+/*
+ * Copyright 2016 Frank Pavageau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ekino.neo4j.traversal;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Comparison of the different ways of answering the same question on the same tree: the traversal framework, the
+ * loop over node ids, the recursive walk, the Cypher query, and the label scan without any walk. The result of each
+ * engine is checked against the traversal framework before measuring it.
+ *
+ * <pre>
+ * java -jar benchmarks/target/benchmarks.jar EngineBenchmark
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+// The pool of workers must allow the highest parallelism, whatever the number of processors
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g", "-Dtraversal-perfs.traversal.workers=4"})
+@State(Scope.Benchmark)
+public class EngineBenchmark {
+    @Param({"framework", "ids", "core", "cypher", "scan"})
+    public String engine;
+
+    @Param({"1", "4"})
+    public int parallelism;
+
+    @Param({"4"})
+    public int depth;
+
+    @Param({"4"})
+    public int fanout;
+
+    private EmbeddedDatabase database;
+    private TrueBNodesCounter counter;
+    private TraversalEngine traversalEngine;
+
+    @Setup
+    public void setUp() throws Exception {
+        database = EmbeddedDatabase.populate(depth, fanout);
+        counter = new TrueBNodesCounter(database.getGraphDb(), Neo4jOperations.get(null));
+        traversalEngine = TraversalEngine.get(engine);
+        int expected;
+        try (Transaction ignored = database.getGraphDb().beginTx()) {
+            expected = counter.count(TraversalEngine.FRAMEWORK, true, 1);
+        }
+        int actual = count();
+        if (actual != expected) {
+            throw new IllegalStateException("Inconsistent " + engine + " count: " + actual + " instead of " +
+                    expected);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        database.shutdown();
+    }
+
+    @Benchmark
+    public int count() {
+        GraphDatabaseService graphDb = database.getGraphDb();
+        try (Transaction ignored = graphDb.beginTx()) {
+            return counter.count(traversalEngine, true, parallelism);
+        }
+    }
+}
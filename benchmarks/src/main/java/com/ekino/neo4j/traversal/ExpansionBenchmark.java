@@ -0,0 +1,120 @@
+/*
+ * Copyright 2016 Frank Pavageau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ekino.neo4j.traversal;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.impl.core.NodeManager;
+import org.neo4j.tooling.GlobalGraphOperations;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the expansion alone, i.e. getting the ids of the children of every node of the tree, from the relationship
+ * store or from the adjacency cache: the type of relationship of each node is computed beforehand, so the labels
+ * aren't read during the measurement.
+ *
+ * <pre>
+ * java -jar benchmarks/target/benchmarks.jar ExpansionBenchmark -prof gc
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Benchmark)
+public class ExpansionBenchmark {
+    @Param({"none", "adjacency"})
+    public String cache;
+
+    @Param({"4"})
+    public int depth;
+
+    @Param({"4"})
+    public int fanout;
+
+    private EmbeddedDatabase database;
+    private NodeManager nodeManager;
+    private long[] nodeIds;
+    private RelationshipTypes[] types;
+    private final LongArrayList childIds = new LongArrayList();
+
+    @Setup
+    public void setUp() throws Exception {
+        database = EmbeddedDatabase.populate(depth, fanout);
+        GraphDatabaseService graphDb = database.getGraphDb();
+        nodeManager = Neo4jInternals.resolveDependency(graphDb, NodeManager.class);
+        LongArrayList ids = new LongArrayList();
+        LongArrayList bIds = new LongArrayList();
+        try (Transaction ignored = graphDb.beginTx()) {
+            for (Node node : GlobalGraphOperations.at(graphDb).getAllNodes()) {
+                if (node.hasLabel(Labels.A)) {
+                    ids.add(node.getId());
+                } else if (node.hasLabel(Labels.B)) {
+                    bIds.add(node.getId());
+                }
+            }
+        }
+        nodeIds = new long[ids.size() + bIds.size()];
+        types = new RelationshipTypes[nodeIds.length];
+        for (int i = 0; i < ids.size(); i++) {
+            nodeIds[i] = ids.getLong(i);
+            types[i] = RelationshipTypes.HAS_B;
+        }
+        for (int i = 0; i < bIds.size(); i++) {
+            nodeIds[ids.size() + i] = bIds.getLong(i);
+            types[ids.size() + i] = RelationshipTypes.HAS_A;
+        }
+        // Start each trial with a cold cache, the warm-up iterations filling it
+        Neo4jOperations.clearCache();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        database.shutdown();
+    }
+
+    @Benchmark
+    public long expand() {
+        Neo4jOperations neo4jOperations = Neo4jOperations.get(cache);
+        long sum = 0;
+        try (Transaction ignored = database.getGraphDb().beginTx()) {
+            for (int i = 0; i < nodeIds.length; i++) {
+                childIds.clear();
+                neo4jOperations.getChildIds(nodeManager.newNodeProxyById(nodeIds[i]), types[i], childIds);
+                for (int j = 0; j < childIds.size(); j++) {
+                    sum += childIds.getLong(j);
+                }
+            }
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright 2016 Frank Pavageau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ekino.neo4j.traversal;
+
+import org.HdrHistogram.Histogram;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Scanner;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load generator for the {@code /traverse} endpoint of a running server, with the same scenarios as {@code run.sh}, but
+ * without a process per request: the clients reuse their connections (HTTP keep-alive), and the latencies are recorded
+ * in a {@link Histogram}.
+ *
+ * By default, each client sends its next request as soon as it gets the previous response (closed loop). With
+ * {@code --rate}, the requests are scheduled at a fixed arrival rate instead, and their latency is measured from their
+ * scheduled time rather than from the time they were actually sent, so a slow response delaying the next requests
+ * doesn't hide their waiting time (coordinated omission).
+ *
+ * The latencies are printed in seconds, like {@code run.sh}, and {@code --one-line} prints the same columns as
+ * {@code quantiles.awk}.
+ */
+public class LoadGenerator {
+    private static final long HIGHEST_LATENCY = TimeUnit.MINUTES.toMicros(10);
+
+    private final String url;
+    private final String query;
+    private final boolean clearCache;
+    private final int clients;
+    private final int iterations;
+    private final double rate;
+    private final AtomicInteger errors = new AtomicInteger();
+
+    public LoadGenerator(String url, String query, boolean clearCache, int clients, int iterations, double rate) {
+        this.url = url;
+        this.query = query;
+        this.clearCache = clearCache;
+        this.clients = clients;
+        this.iterations = iterations;
+        this.rate = rate;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String url = "http://localhost:7474/traversal-perfs";
+        StringBuilder query = new StringBuilder();
+        boolean warmUp = true;
+        boolean clearCache = false;
+        boolean oneLine = false;
+        boolean cacheStats = false;
+        String cacheBudget = null;
+        String check = null;
+        int clients = 1;
+        int iterations = 100;
+        double rate = 0;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--help":
+                    usage();
+                    return;
+                case "--no-warm-up":
+                    warmUp = false;
+                    break;
+                case "--clear-cache":
+                    clearCache = true;
+                    break;
+                case "--depth-first":
+                    appendParameter(query, "depthFirst", "");
+                    break;
+                case "--cache":
+                    appendParameter(query, "cache", args[++i]);
+                    break;
+                case "--engine":
+                    appendParameter(query, "engine", args[++i]);
+                    break;
+                case "--parallel":
+                    appendParameter(query, "parallel", args[++i]);
+                    break;
+                case "--start":
+                    appendParameter(query, "start", args[++i]);
+                    break;
+                case "--max-depth":
+                    appendParameter(query, "maxDepth", args[++i]);
+                    break;
+                case "--timeout":
+                    appendParameter(query, "timeout", args[++i]);
+                    break;
+                case "--cache-budget":
+                    cacheBudget = args[++i];
+                    break;
+                case "--cache-stats":
+                    cacheStats = true;
+                    break;
+                case "--check":
+                    check = args[++i];
+                    break;
+                case "-c":
+                    clients = Integer.parseInt(args[++i]);
+                    break;
+                case "-n":
+                    iterations = Integer.parseInt(args[++i]);
+                    break;
+                case "--rate":
+                    rate = Double.parseDouble(args[++i]);
+                    break;
+                case "--one-line":
+                    oneLine = true;
+                    break;
+                case "--url":
+                    url = args[++i];
+                    break;
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    usage();
+                    System.exit(1);
+            }
+        }
+        // Keep a connection alive for each client
+        System.setProperty("http.maxConnections", String.valueOf(clients));
+
+        if (cacheBudget != null) {
+            get(url + "/cache/budget?label=" + cacheBudget + "&property=" + cacheBudget + "&adjacency=" + cacheBudget);
+        }
+        if (check != null) {
+            // The check compares the count of the selected engine with the others, and fails if they differ
+            try {
+                get(url + "/traverse" + (query.length() == 0 ? "?" : query + "&") + "check=" + check);
+            } catch (IOException e) {
+                System.err.println("Check failed: " + e.getMessage());
+                System.exit(1);
+            }
+        }
+        LoadGenerator generator = new LoadGenerator(url, query.toString(), clearCache, clients, iterations, rate);
+        if (warmUp) {
+            if (!oneLine) {
+                System.out.println("Warming up");
+            }
+            generator.run();
+        }
+        if (!oneLine) {
+            System.out.println("Measuring");
+        }
+        long start = System.nanoTime();
+        Histogram histogram = generator.run();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        generator.print(histogram, elapsed, oneLine);
+
+        if (cacheStats) {
+            System.out.print(get(url + "/cache/stats"));
+        }
+    }
+
+    private static void usage() {
+        System.out.println("LoadGenerator [--help] [--no-warm-up] [--clear-cache] [--depth-first] " +
+                "[--cache cache1[,cache2[,...]]] [--cache-budget MB] [--cache-stats] [--check engines] " +
+                "[--engine engine] [--parallel workers] [--start id] [--max-depth depth] [--timeout ms] " +
+                "[-c clients] [-n iterations] [--rate requests/s] [--one-line] [--url url]");
+        System.out.println("\t-c             set the number of concurrent clients (default: 1)");
+        System.out.println("\t--rate         send the requests at a fixed rate instead of back-to-back");
+        System.out.println("\t--url          set the base URL of the extension (default: " +
+                "http://localhost:7474/traversal-perfs)");
+        System.out.println("\tThe other options are the same as run.sh");
+    }
+
+    private static void appendParameter(StringBuilder query, String name, String value) {
+        query.append(query.length() == 0 ? '?' : '&').append(name).append('=').append(value);
+    }
+
+    /**
+     * Send the requests from the clients, each recording its own histogram to avoid any contention.
+     *
+     * @return The merged histogram of the latencies, in microseconds
+     */
+    public Histogram run() throws InterruptedException, ExecutionException {
+        errors.set(0);
+        final AtomicInteger next = new AtomicInteger();
+        final long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        try {
+            List<Callable<Histogram>> tasks = new ArrayList<>(clients);
+            for (int i = 0; i < clients; i++) {
+                tasks.add(new Callable<Histogram>() {
+                    @Override
+                    public Histogram call() throws Exception {
+                        Histogram histogram = new Histogram(HIGHEST_LATENCY, 3);
+                        int iteration;
+                        while ((iteration = next.getAndIncrement()) < iterations) {
+                            long scheduled = rate > 0 ? start + (long) (iteration * 1e9 / rate) : 0;
+                            long delay = scheduled - System.nanoTime();
+                            if (delay > 0) {
+                                TimeUnit.NANOSECONDS.sleep(delay);
+                            }
+                            if (clearCache) {
+                                send(url + "/cache/clear");
+                            }
+                            long sent = System.nanoTime();
+                            if (send(url + "/traverse" + query)) {
+                                long latency = System.nanoTime() - (rate > 0 ? scheduled : sent);
+                                histogram.recordValue(Math.min(TimeUnit.NANOSECONDS.toMicros(latency),
+                                        HIGHEST_LATENCY));
+                            }
+                        }
+                        return histogram;
+                    }
+                });
+            }
+            Histogram histogram = new Histogram(HIGHEST_LATENCY, 3);
+            for (Future<Histogram> result : executor.invokeAll(tasks)) {
+                histogram.add(result.get());
+            }
+            return histogram;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private boolean send(String requestUrl) {
+        try {
+            get(requestUrl);
+            return true;
+        } catch (IOException e) {
+            errors.incrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * Send a request, reading the whole response so the connection can be reused.
+     */
+    private static String get(String requestUrl) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(requestUrl).openConnection();
+        int status = connection.getResponseCode();
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        String body = "";
+        if (in != null) {
+            try (Scanner scanner = new Scanner(in, "UTF-8").useDelimiter("\\A")) {
+                body = scanner.hasNext() ? scanner.next() : "";
+            }
+        }
+        if (status >= 400) {
+            throw new IOException("HTTP " + status + " for " + requestUrl + ": " + body);
+        }
+        return body;
+    }
+
+    private void print(Histogram histogram, double elapsed, boolean oneLine) {
+        if (histogram.getTotalCount() == 0) {
+            System.err.println("No successful request");
+        } else if (oneLine) {
+            System.out.println(seconds(histogram.getMean()) + "\t" +
+                    seconds(histogram.getValueAtPercentile(50)) + "\t" +
+                    seconds(histogram.getValueAtPercentile(90)) + "\t" +
+                    seconds(histogram.getValueAtPercentile(95)) + "\t" +
+                    seconds(histogram.getMaxValue()));
+        } else {
+            System.out.println("Mean\t" + seconds(histogram.getMean()));
+            System.out.println("50%\t" + seconds(histogram.getValueAtPercentile(50)));
+            System.out.println("90%\t" + seconds(histogram.getValueAtPercentile(90)));
+            System.out.println("95%\t" + seconds(histogram.getValueAtPercentile(95)));
+            System.out.println("99%\t" + seconds(histogram.getValueAtPercentile(99)));
+            System.out.println("99.9%\t" + seconds(histogram.getValueAtPercentile(99.9)));
+            System.out.println("Max\t" + seconds(histogram.getMaxValue()));
+        }
+
+        if (clients > 1 || rate > 0) {
+            double throughput = histogram.getTotalCount() / elapsed;
+            System.out.println(oneLine ? String.valueOf(throughput) : "Req/s\t" + throughput);
+        }
+        if (errors.get() > 0) {
+            System.err.println("Errors\t" + errors.get());
+        }
+    }
+
+    private static String seconds(double micros) {
+        return String.format(Locale.ROOT, "%.6f", micros / 1e6);
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2016 Frank Pavageau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ekino.neo4j.traversal;
+
+import org.HdrHistogram.Histogram;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One cell of the version matrix run by {@code matrix.sh}: the traversals of a tree on an embedded database, with the
+ * Neo4j version of the classpath and the heap of the JVM, for each cache option and traversal mode. Each combination
+ * starts from a restarted database and cleared caches, is warmed up, then measured over a number of iterations, and
+ * appended as a line of tab-separated values to the results (see {@link MatrixReport} for the columns):
+ * <ul>
+ * <li>the mean, 50%, 90%, 95% and max latencies in ms, from an HdrHistogram</li>
+ * <li>the working set in MB, i.e. the heap still used after a full GC once measured, compared to before the warm-up:
+ * the object cache of Neo4j 2.2 (soft references by default) and the caches of the application are part of it</li>
+ * <li>the garbage per request in MB, i.e. the bytes allocated by the threads of the traversal</li>
+ * </ul>
+ *
+ * <pre>
+ * java -Xms2g -Xmx2g -cp benchmarks/target/benchmarks.jar com.ekino.neo4j.traversal.MatrixBenchmark --cache none
+ * </pre>
+ */
+public class MatrixBenchmark {
+    private static final long HIGHEST_LATENCY = TimeUnit.MINUTES.toMicros(10);
+    private static final String[] MODES = {"breadth-first", "depth-first"};
+
+    private final EmbeddedDatabase database;
+    private final String version;
+    private final long heap;
+    private final TraversalEngine engine;
+    private final boolean clearCache;
+    private final int warmUpIterations;
+    private final int iterations;
+    private final CacheOperations cacheOperations = CacheOperations.create();
+
+    public MatrixBenchmark(EmbeddedDatabase database, TraversalEngine engine, boolean clearCache, int warmUpIterations,
+                           int iterations) {
+        this.database = database;
+        this.engine = engine;
+        this.clearCache = clearCache;
+        this.warmUpIterations = warmUpIterations;
+        this.iterations = iterations;
+        version = Neo4jInternals.getKernelVersion();
+        heap = getHeap();
+    }
+
+    public static void main(String[] args) throws IOException {
+        int depth = 5;
+        int fanout = 4;
+        List<String> caches = new ArrayList<>();
+        String engine = null;
+        boolean clearCache = false;
+        int warmUpIterations = 10;
+        int iterations = 50;
+        String pageCache = "1g";
+        File output = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--help":
+                    usage();
+                    return;
+                case "--depth":
+                    depth = Integer.parseInt(args[++i]);
+                    break;
+                case "--fanout":
+                    fanout = Integer.parseInt(args[++i]);
+                    break;
+                case "--cache":
+                    caches.add(args[++i]);
+                    break;
+                case "--engine":
+                    engine = args[++i];
+                    break;
+                case "--clear-cache":
+                    clearCache = true;
+                    break;
+                case "--warm-up":
+                    warmUpIterations = Integer.parseInt(args[++i]);
+                    break;
+                case "-n":
+                    iterations = Integer.parseInt(args[++i]);
+                    break;
+                case "--page-cache":
+                    pageCache = args[++i];
+                    break;
+                case "--output":
+                    output = new File(args[++i]);
+                    break;
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    usage();
+                    System.exit(1);
+            }
+        }
+        if (caches.isEmpty()) {
+            caches.add("none");
+        }
+
+        EmbeddedDatabase database = EmbeddedDatabase.populate(depth, fanout, pageCache);
+        try (PrintWriter out = output != null ? new PrintWriter(new FileWriter(output, true)) :
+                new PrintWriter(System.out)) {
+            if (output == null || output.length() == 0) {
+                out.println(MatrixReport.HEADER);
+            }
+            MatrixBenchmark benchmark = new MatrixBenchmark(database, TraversalEngine.get(engine), clearCache,
+                    warmUpIterations, iterations);
+            for (String cache : caches) {
+                for (String mode : MODES) {
+                    out.println(benchmark.run(cache, "depth-first".equals(mode)));
+                    out.flush();
+                }
+            }
+        } finally {
+            database.shutdown();
+        }
+    }
+
+    private static void usage() {
+        System.out.println("MatrixBenchmark [--help] [--depth depth] [--fanout fanout] " +
+                "[--cache cache1[,cache2[,...]]] [--engine engine] [--clear-cache] [--warm-up iterations] " +
+                "[-n iterations] [--page-cache size] [--output file]");
+        System.out.println("\t--cache        enable the named caches, once per cache option (default: none)");
+        System.out.println("\t--output       append the results to the given file instead of the standard output");
+        System.out.println("\t--page-cache   set the size of the page cache of the database (default: 1g)");
+        System.out.println("\t--warm-up      set the number of warm-up iterations (default: 10)");
+        System.out.println("\t-n             set the number of measured iterations (default: 50)");
+        System.out.println("\tThe other options are the same as run.sh");
+    }
+
+    /**
+     * @return The heap of the JVM in MB, as given by -Xmx
+     */
+    private static long getHeap() {
+        for (String argument : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (argument.startsWith("-Xmx")) {
+                String size = argument.substring(4).toLowerCase(Locale.ROOT);
+                long value = Long.parseLong(size.replaceAll("[kmg]$", ""));
+                if (size.endsWith("g")) {
+                    return value << 10;
+                } else if (size.endsWith("m")) {
+                    return value;
+                } else if (size.endsWith("k")) {
+                    return value >> 10;
+                }
+                return value >> 20;
+            }
+        }
+        return Runtime.getRuntime().maxMemory() >> 20;
+    }
+
+    /**
+     * Measure a combination of the matrix.
+     *
+     * @return The line of results
+     */
+    public String run(String cache, boolean depthFirst) {
+        database.restart();
+        Neo4jOperations.clearCache();
+        long baseline = usedHeap();
+        for (int i = 0; i < warmUpIterations; i++) {
+            count(cache, depthFirst);
+        }
+        Histogram histogram = new Histogram(HIGHEST_LATENCY, 3);
+        long allocatedBytes = 0;
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            RequestMetrics metrics = count(cache, depthFirst);
+            histogram.recordValue(Math.min(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start),
+                    HIGHEST_LATENCY));
+            allocatedBytes += metrics.allocatedBytes;
+        }
+        long workingSet = Math.max(usedHeap() - baseline, 0);
+        return String.format(Locale.ROOT, "%s\t%d\t%s\t%s\t%s\t%s\t%.1f\t%.1f\t%.1f\t%.1f\t%.1f\t%.1f\t%.1f",
+                version, heap, engine, depthFirst ? "depth-first" : "breadth-first", cache, clearCache,
+                histogram.getMean() / 1e3, histogram.getValueAtPercentile(50) / 1e3,
+                histogram.getValueAtPercentile(90) / 1e3, histogram.getValueAtPercentile(95) / 1e3,
+                histogram.getMaxValue() / 1e3, workingSet / 1048576.0, allocatedBytes / 1048576.0 / iterations);
+    }
+
+    private RequestMetrics count(String cache, boolean depthFirst) {
+        if (clearCache) {
+            // Like /cache/clear
+            cacheOperations.clear();
+            Neo4jOperations.clearCache();
+        }
+        GraphDatabaseService graphDb = database.getGraphDb();
+        Neo4jOperations neo4jOperations = Neo4jOperations.get("none".equals(cache) ? null : cache);
+        RequestMetrics metrics = neo4jOperations.getMetrics();
+        metrics.start();
+        try (Transaction ignored = graphDb.beginTx()) {
+            new TrueBNodesCounter(graphDb, neo4jOperations).count(engine, depthFirst, 1);
+        } finally {
+            metrics.stop();
+        }
+        return metrics;
+    }
+
+    private static long usedHeap() {
+        // Several collections, as a single one may leave some garbage behind (e.g. objects with finalizers)
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
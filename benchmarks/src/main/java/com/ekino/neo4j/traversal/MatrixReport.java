@@ -0,0 +1,159 @@
+/*
+ * Copyright 2016 Frank Pavageau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ekino.neo4j.traversal;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Generator of the README tables from the results of the version matrix written by {@link MatrixBenchmark}: one table
+ * per engine and cache option, with a column per Neo4j version, traversal mode and heap, and a row per measure.
+ *
+ * The results are tab-separated values, with the columns of {@link #HEADER}, the latencies in ms and the memory in MB.
+ *
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar com.ekino.neo4j.traversal.MatrixReport results/matrix.tsv
+ * </pre>
+ */
+public class MatrixReport {
+    static final String HEADER = "version\theap\tengine\tmode\tcache\tclear\tmean\tp50\tp90\tp95\tmax\tworkingSet\t" +
+            "garbage";
+
+    private static final String[] MODES = {"breadth-first", "depth-first"};
+    private static final String[] ROWS = {
+            "Mean", "50%", "90%", "95%", "Max", "Working set (MB)", "Garbage per request (MB)"
+    };
+    /**
+     * Number of rows holding latencies, the first ones.
+     */
+    private static final int LATENCY_ROWS = 5;
+
+    /**
+     * Compare the versions by their numeric components, so 2.10 comes after 2.9.
+     */
+    private static final Comparator<String> VERSION_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String version1, String version2) {
+            String[] components1 = version1.split("[.-]");
+            String[] components2 = version2.split("[.-]");
+            for (int i = 0; i < Math.min(components1.length, components2.length); i++) {
+                int comparison = components1[i].matches("\\d+") && components2[i].matches("\\d+") ?
+                        Long.compare(Long.parseLong(components1[i]), Long.parseLong(components2[i])) :
+                        components1[i].compareTo(components2[i]);
+                if (comparison != 0) {
+                    return comparison;
+                }
+            }
+            return Integer.compare(components1.length, components2.length);
+        }
+    };
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.out.println("MatrixReport results-file [results-file [...]]");
+            System.exit(1);
+        }
+        // The tables, by engine and cache option, in the order of the results
+        Map<String, List<String[]>> tables = new LinkedHashMap<>();
+        for (String file : args) {
+            for (String line : Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8)) {
+                if (line.isEmpty() || line.equals(HEADER)) {
+                    continue;
+                }
+                String[] columns = line.split("\t");
+                String table = columns[2] + "\t" + columns[4] + "\t" + columns[5];
+                if (!tables.containsKey(table)) {
+                    tables.put(table, new ArrayList<String[]>());
+                }
+                tables.get(table).add(columns);
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, List<String[]>> table : tables.entrySet()) {
+            String[] key = table.getKey().split("\t");
+            sb.append("Engine `").append(key[0]).append("`, cache `").append(key[1]).append('`')
+                    .append(Boolean.parseBoolean(key[2]) ? ", cleared before each traversal" : "")
+                    .append(". The times are in milliseconds.\n\n");
+            appendTable(sb, table.getValue());
+            sb.append('\n');
+        }
+        System.out.print(sb);
+    }
+
+    private static void appendTable(StringBuilder sb, List<String[]> results) {
+        TreeSet<String> versions = new TreeSet<>(VERSION_ORDER);
+        TreeSet<Long> heaps = new TreeSet<>();
+        Map<String, String[]> cells = new LinkedHashMap<>();
+        for (String[] result : results) {
+            versions.add(result[0]);
+            heaps.add(Long.parseLong(result[1]));
+            // The last run of a combination wins
+            cells.put(result[0] + "\t" + Long.parseLong(result[1]) + "\t" + result[3], result);
+        }
+
+        sb.append("<table>\n");
+        sb.append("  <tr>\n    <th>Version</th>\n");
+        for (String version : versions) {
+            sb.append("    <th colspan=\"").append(MODES.length * heaps.size()).append("\">Neo4j ").append(version)
+                    .append("</th>\n");
+        }
+        sb.append("  </tr>\n  <tr>\n    <th>Traversal mode</th>\n");
+        for (int i = 0; i < versions.size(); i++) {
+            for (String mode : MODES) {
+                sb.append("    <th colspan=\"").append(heaps.size()).append("\">")
+                        .append("depth-first".equals(mode) ? "Depth-First" : "Breadth-First").append("</th>\n");
+            }
+        }
+        sb.append("  </tr>\n  <tr>\n    <th>Heap (MB)</th>\n");
+        for (int i = 0; i < versions.size() * MODES.length; i++) {
+            for (long heap : heaps) {
+                sb.append("    <th>").append(heap).append("</th>\n");
+            }
+        }
+        sb.append("  </tr>\n");
+        for (int row = 0; row < ROWS.length; row++) {
+            sb.append("  <tr>\n    <th>").append(ROWS[row]).append("</th>\n");
+            for (String version : versions) {
+                for (String mode : MODES) {
+                    for (long heap : heaps) {
+                        String[] cell = cells.get(version + "\t" + heap + "\t" + mode);
+                        sb.append("    <td>").append(cell == null ? "" : format(cell[6 + row], row)).append("</td>\n");
+                    }
+                }
+            }
+            sb.append("  </tr>\n");
+        }
+        sb.append("</table>\n");
+    }
+
+    /**
+     * The latencies are rounded to the ms like the other tables, the memory keeps its decimal.
+     */
+    private static String format(String value, int row) {
+        if (row < LATENCY_ROWS) {
+            return String.valueOf(Math.round(Double.parseDouble(value)));
+        }
+        return value;
+    }
+}
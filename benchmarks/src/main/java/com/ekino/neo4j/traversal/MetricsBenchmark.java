@@ -0,0 +1,100 @@
+/*
+ * Copyright 2016 Frank Pavageau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ekino.neo4j.traversal;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Overhead of the {@link RequestMetrics}: the same request, recording its metrics like {@code TraversalResource}, in a
+ * JVM where they're enabled and in another one where they're disabled, i.e. removed by the JIT.
+ *
+ * <pre>
+ * java -jar benchmarks/target/benchmarks.jar MetricsBenchmark -prof gc
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@State(Scope.Benchmark)
+public class MetricsBenchmark {
+    @Param({"framework", "ids"})
+    public String engine;
+
+    @Param({"none", "label,property"})
+    public String cache;
+
+    @Param({"4"})
+    public int depth;
+
+    @Param({"4"})
+    public int fanout;
+
+    private EmbeddedDatabase database;
+    private TraversalEngine traversalEngine;
+
+    @Setup
+    public void setUp() throws Exception {
+        database = EmbeddedDatabase.populate(depth, fanout);
+        traversalEngine = TraversalEngine.get(engine);
+        Neo4jOperations.clearCache();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        database.shutdown();
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g", "-Dtraversal-perfs.metrics=true"})
+    public int withMetrics() {
+        return count();
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g", "-Dtraversal-perfs.metrics=false"})
+    public int withoutMetrics() {
+        return count();
+    }
+
+    private int count() {
+        GraphDatabaseService graphDb = database.getGraphDb();
+        Neo4jOperations neo4jOperations = Neo4jOperations.get(cache);
+        RequestMetrics metrics = neo4jOperations.getMetrics();
+        metrics.start();
+        try (Transaction ignored = graphDb.beginTx()) {
+            return new TrueBNodesCounter(graphDb, neo4jOperations).count(traversalEngine, true, 1);
+        } finally {
+            metrics.stop();
+            Metrics.INSTANCE.record(metrics);
+        }
+    }
+}
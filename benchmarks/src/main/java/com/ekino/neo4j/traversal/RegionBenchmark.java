@@ -0,0 +1,106 @@
+/*
+ * Copyright 2016 Frank Pavageau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ekino.neo4j.traversal;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of the bounded traversals, from the root or from a node deeper in the tree, up to a maximum depth: the
+ * pruned subtrees are never expanded, so the latency follows the size of the requested region instead of the size of
+ * the tree.
+ *
+ * <pre>
+ * java -jar benchmarks/target/benchmarks.jar RegionBenchmark
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Benchmark)
+public class RegionBenchmark {
+    @Param({"framework", "ids"})
+    public String engine;
+
+    /**
+     * Depth of the start node, its first descendants being followed from the root.
+     */
+    @Param({"0", "2"})
+    public int startDepth;
+
+    /**
+     * Maximum depth from the start node, -1 for an unbounded traversal.
+     */
+    @Param({"2", "4", "6", "-1"})
+    public int maxDepth;
+
+    @Param({"4"})
+    public int depth;
+
+    @Param({"4"})
+    public int fanout;
+
+    private EmbeddedDatabase database;
+    private TraversalEngine traversalEngine;
+    private long startId;
+
+    @Setup
+    public void setUp() throws Exception {
+        database = EmbeddedDatabase.populate(depth, fanout);
+        traversalEngine = TraversalEngine.get(engine);
+        GraphDatabaseService graphDb = database.getGraphDb();
+        try (Transaction ignored = graphDb.beginTx()) {
+            Node start = graphDb.findNodes(Labels.Root).next();
+            for (int i = 0; i < startDepth; i++) {
+                start = start.getRelationships(Direction.OUTGOING).iterator().next().getEndNode();
+            }
+            startId = start.getId();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        database.shutdown();
+    }
+
+    @Benchmark
+    public int count() {
+        GraphDatabaseService graphDb = database.getGraphDb();
+        try (Transaction ignored = graphDb.beginTx()) {
+            TrueBNodesCounter counter = new TrueBNodesCounter(graphDb, Neo4jOperations.get(null),
+                    maxDepth < 0 ? TrueBNodesCounter.UNBOUNDED : maxDepth, true);
+            return counter.count(graphDb.getNodeById(startId), traversalEngine, true, 1);
+        }
+    }
+}
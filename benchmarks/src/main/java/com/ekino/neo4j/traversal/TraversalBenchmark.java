@@ -0,0 +1,93 @@
+/*
+ * Copyright 2016 Frank Pavageau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ekino.neo4j.traversal;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of {@link TrueBNodesCounter#count(TraversalEngine, boolean, int)} on an embedded database, without the
+ * HTTP and JAX-RS layers of the server. Run it with the GC profiler to get the allocation rate and the garbage per
+ * traversal:
+ *
+ * <pre>
+ * java -jar benchmarks/target/benchmarks.jar TraversalBenchmark -prof gc
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Benchmark)
+public class TraversalBenchmark {
+    @Param({"framework", "ids"})
+    public String engine;
+
+    @Param({"breadthFirst", "depthFirst"})
+    public String mode;
+
+    @Param({"none", "label", "property", "label,property", "bitset", "bitset,adjacency"})
+    public String cache;
+
+    @Param({"4"})
+    public int depth;
+
+    @Param({"4"})
+    public int fanout;
+
+    private EmbeddedDatabase database;
+    private TrueBNodesCounter counter;
+    private TraversalEngine traversalEngine;
+    private boolean depthFirst;
+
+    @Setup
+    public void setUp() throws Exception {
+        database = EmbeddedDatabase.populate(depth, fanout);
+        counter = new TrueBNodesCounter(database.getGraphDb(), Neo4jOperations.get(cache));
+        traversalEngine = TraversalEngine.get(engine);
+        depthFirst = "depthFirst".equals(mode);
+        // Start each trial with cold caches, the warm-up iterations filling them
+        Neo4jOperations.clearCache();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        database.shutdown();
+    }
+
+    @Benchmark
+    public int count() {
+        GraphDatabaseService graphDb = database.getGraphDb();
+        try (Transaction ignored = graphDb.beginTx()) {
+            return counter.count(traversalEngine, depthFirst, 1);
+        }
+    }
+}
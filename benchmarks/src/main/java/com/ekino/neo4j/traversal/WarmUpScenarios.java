@@ -0,0 +1,310 @@
+/*
+ * Copyright 2016 Frank Pavageau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ekino.neo4j.traversal;
+
+import org.neo4j.graphdb.Transaction;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Scenarios measuring the cold path of the traversals on an embedded database, which {@code run.sh} hides behind its
+ * warm-up requests. Each phase starts from a different state, then sends a series of requests, and reports the latency
+ * of the first one, the number of requests before the latency reaches its steady state, and the steady-state latency:
+ * <ul>
+ * <li>{@code cold-start}: the first traversals of the JVM, on a database just started, everything being cold</li>
+ * <li>{@code clear-cache}: after clearing the caches of the application, the database and the JIT staying warm</li>
+ * <li>{@code restart}: after restarting the database, which empties its page cache, the caches of the application
+ * staying warm</li>
+ * <li>{@code restart-clear-cache}: after both</li>
+ * </ul>
+ * The last three phases are repeated, and the median of each value is reported, so a regression of a cold path shows up
+ * on its own. The page cache has a fixed size, so the results don't depend on the memory of the machine, and the
+ * database is restarted after being populated, so the first phase starts with an empty page cache. The OS file cache
+ * can't be dropped portably though, so the store files may still be in memory.
+ *
+ * The steady state is detected from the series of latencies: it starts once the moving median over 10 requests falls
+ * within 10% of the median of the second half of the series.
+ *
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar com.ekino.neo4j.traversal.WarmUpScenarios --depth 5 --cache bitset
+ * </pre>
+ */
+public class WarmUpScenarios {
+    private static final int WINDOW = 10;
+    private static final double TOLERANCE = 0.1;
+
+    private final EmbeddedDatabase database;
+    private final String cache;
+    private final TraversalEngine engine;
+    private final boolean depthFirst;
+    private final int parallelism;
+    private final int iterations;
+    private int expectedCount = -1;
+
+    public WarmUpScenarios(EmbeddedDatabase database, String cache, TraversalEngine engine, boolean depthFirst,
+                           int parallelism, int iterations) {
+        this.database = database;
+        this.cache = cache;
+        this.engine = engine;
+        this.depthFirst = depthFirst;
+        this.parallelism = parallelism;
+        this.iterations = iterations;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int depth = 4;
+        int fanout = 4;
+        String cache = null;
+        String engine = null;
+        boolean depthFirst = false;
+        int parallelism = 1;
+        int iterations = 100;
+        int repetitions = 3;
+        String pageCache = "64m";
+        boolean oneLine = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--help":
+                    usage();
+                    return;
+                case "--depth":
+                    depth = Integer.parseInt(args[++i]);
+                    break;
+                case "--fanout":
+                    fanout = Integer.parseInt(args[++i]);
+                    break;
+                case "--cache":
+                    cache = args[++i];
+                    break;
+                case "--engine":
+                    engine = args[++i];
+                    break;
+                case "--depth-first":
+                    depthFirst = true;
+                    break;
+                case "--parallel":
+                    parallelism = Integer.parseInt(args[++i]);
+                    break;
+                case "-n":
+                    iterations = Integer.parseInt(args[++i]);
+                    break;
+                case "--repetitions":
+                    repetitions = Integer.parseInt(args[++i]);
+                    break;
+                case "--page-cache":
+                    pageCache = args[++i];
+                    break;
+                case "--one-line":
+                    oneLine = true;
+                    break;
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    usage();
+                    System.exit(1);
+            }
+        }
+        if (iterations < 2 * WINDOW) {
+            System.err.println("At least " + 2 * WINDOW + " iterations are needed to detect the steady state");
+            System.exit(1);
+        }
+
+        if (!oneLine) {
+            System.out.println("Populating a tree with a depth of " + depth + " and a fanout of " + fanout);
+        }
+        EmbeddedDatabase database = EmbeddedDatabase.populate(depth, fanout, pageCache);
+        try {
+            WarmUpScenarios scenarios = new WarmUpScenarios(database, cache, TraversalEngine.get(engine), depthFirst,
+                    parallelism, iterations);
+            List<PhaseResult> results = new ArrayList<>();
+            for (Phase phase : Phase.values()) {
+                results.add(scenarios.run(phase, phase == Phase.COLD_START ? 1 : repetitions));
+            }
+            print(results, oneLine);
+        } finally {
+            database.shutdown();
+        }
+    }
+
+    private static void usage() {
+        System.out.println("WarmUpScenarios [--help] [--depth depth] [--fanout fanout] " +
+                "[--cache cache1[,cache2[,...]]] [--engine engine] [--depth-first] [--parallel workers] " +
+                "[-n iterations] [--repetitions repetitions] [--page-cache size] [--one-line]");
+        System.out.println("\t-n             set the number of requests of each phase (default: 100)");
+        System.out.println("\t--page-cache   set the size of the page cache of the database (default: 64m)");
+        System.out.println("\t--repetitions  set the number of repetitions of the warm phases (default: 3)");
+        System.out.println("\tThe other options are the same as run.sh");
+    }
+
+    /**
+     * Run the repetitions of a phase, each from the state prepared by the phase.
+     *
+     * @return The median of each value over the repetitions
+     */
+    public PhaseResult run(Phase phase, int repetitions) {
+        long[] first = new long[repetitions];
+        long[] warmUp = new long[repetitions];
+        long[] steady = new long[repetitions];
+        for (int i = 0; i < repetitions; i++) {
+            phase.prepare(database);
+            long[] latencies = measure();
+            int steadyState = steadyState(latencies);
+            first[i] = latencies[0];
+            warmUp[i] = steadyState;
+            // Without a steady state, the second half of the series is as steady as it gets
+            steady[i] = median(Arrays.copyOfRange(latencies, Math.min(steadyState, latencies.length / 2),
+                    latencies.length));
+        }
+        return new PhaseResult(phase, median(first), (int) median(warmUp), median(steady));
+    }
+
+    /**
+     * @return The latencies of the requests, in nanoseconds
+     */
+    private long[] measure() {
+        Neo4jOperations neo4jOperations = Neo4jOperations.get(cache);
+        long[] latencies = new long[iterations];
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            int count;
+            try (Transaction ignored = database.getGraphDb().beginTx()) {
+                count = new TrueBNodesCounter(database.getGraphDb(), neo4jOperations)
+                        .count(engine, depthFirst, parallelism);
+            }
+            latencies[i] = System.nanoTime() - start;
+            // The state of the caches can change the latency, but not the result
+            if (expectedCount < 0) {
+                expectedCount = count;
+            } else if (count != expectedCount) {
+                throw new IllegalStateException("Inconsistent count: " + count + " instead of " + expectedCount);
+            }
+        }
+        return latencies;
+    }
+
+    /**
+     * Detect the steady state of a series of latencies: it starts with the first window of requests which median is
+     * below the threshold, derived from the median of the second half of the series, skipping the requests of the
+     * window still above it. The median of the window ignores the isolated outliers, e.g. a GC pause, which would keep
+     * a mean above the threshold.
+     *
+     * @return The number of requests before the steady state, or the length of the series if it's never reached
+     */
+    static int steadyState(long[] latencies) {
+        double threshold = median(Arrays.copyOfRange(latencies, latencies.length / 2, latencies.length)) *
+                (1 + TOLERANCE);
+        for (int i = 0; i + WINDOW <= latencies.length; i++) {
+            if (median(Arrays.copyOfRange(latencies, i, i + WINDOW)) <= threshold) {
+                while (latencies[i] > threshold) {
+                    i++;
+                }
+                return i;
+            }
+        }
+        return latencies.length;
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    private static void print(List<PhaseResult> results, boolean oneLine) {
+        if (oneLine) {
+            StringBuilder sb = new StringBuilder();
+            for (PhaseResult result : results) {
+                sb.append(sb.length() == 0 ? "" : "\t").append(seconds(result.first)).append('\t')
+                        .append(result.warmUp).append('\t').append(seconds(result.steady));
+            }
+            System.out.println(sb);
+        } else {
+            System.out.println("Phase\t\t\tFirst\t\tWarm-up\tSteady");
+            for (PhaseResult result : results) {
+                System.out.println(String.format(Locale.ROOT, "%-20s\t%s\t%d\t%s", result.phase,
+                        seconds(result.first), result.warmUp, seconds(result.steady)));
+            }
+        }
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.6f", nanos / 1e9);
+    }
+
+    /**
+     * The states from which the phases start, in the order they're run.
+     */
+    enum Phase {
+        COLD_START("cold-start") {
+            @Override
+            public void prepare(EmbeddedDatabase database) {
+                // Like restart-clear-cache, the restart emptying the page cache filled by the population, but with no
+                // traversal compiled yet
+                database.restart();
+                Neo4jOperations.clearCache();
+            }
+        },
+        CLEAR_CACHE("clear-cache") {
+            @Override
+            public void prepare(EmbeddedDatabase database) {
+                Neo4jOperations.clearCache();
+            }
+        },
+        RESTART("restart") {
+            @Override
+            public void prepare(EmbeddedDatabase database) {
+                database.restart();
+            }
+        },
+        RESTART_CLEAR_CACHE("restart-clear-cache") {
+            @Override
+            public void prepare(EmbeddedDatabase database) {
+                database.restart();
+                Neo4jOperations.clearCache();
+            }
+        };
+
+        private final String name;
+
+        Phase(String name) {
+            this.name = name;
+        }
+
+        public abstract void prepare(EmbeddedDatabase database);
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    static class PhaseResult {
+        private final Phase phase;
+        private final long first;
+        private final int warmUp;
+        private final long steady;
+
+        public PhaseResult(Phase phase, long first, int warmUp, long steady) {
+            this.phase = phase;
+            this.first = first;
+            this.warmUp = warmUp;
+            this.steady = steady;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+#!/bin/bash
+#
+# Copyright 2016 Frank Pavageau
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#     http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+
+# Benchmark matrix of the traversals on embedded databases, for several Neo4j versions (the Maven profiles), heaps and
+# cache options: the results are appended to matrix.tsv, and the README tables regenerated in matrix.md
+
+declare versions="2.2 2.3"
+declare heaps="1024 2048 4096"
+declare output=results
+declare build=yes
+declare -a options
+
+while [[ $# -gt 0 ]]; do
+    case $1 in
+        "--help")
+            printf "$0 [--help] [--versions \"2.2 2.3\"] [--heaps \"1024 2048 4096\"] [--output dir] [--no-build] [benchmark options]\n"
+            printf "\t--heaps        set the heap sizes in MB (default: 1024 2048 4096)\n"
+            printf "\t--help         this message\n"
+            printf "\t--no-build     reuse the benchmarks built by a previous run\n"
+            printf "\t--output       set the directory of the results (default: results)\n"
+            printf "\t--versions     set the Neo4j versions, from the neo4j-<version> profiles (default: 2.2 2.3)\n"
+            printf "\tThe other options are passed to MatrixBenchmark, e.g. --cache none --cache bitset --depth 4\n"
+            exit 1
+            ;;
+        "--versions")
+            shift
+            versions=$1
+            ;;
+        "--heaps")
+            shift
+            heaps=$1
+            ;;
+        "--output")
+            shift
+            output=$1
+            ;;
+        "--no-build")
+            build=no
+            ;;
+        *)
+            options+=("$1")
+            ;;
+    esac
+    shift
+done
+
+cd "$(dirname "$0")"
+mkdir -p "$output"
+
+declare jar
+for version in $versions; do
+    # Each version needs its own build, the benchmarks embedding the database
+    jar="$output/benchmarks-$version.jar"
+    if [ $build == "yes" ]; then
+        echo "Building with Neo4j $version"
+        mvn -B -q -P neo4j-$version install -DskipTests || exit 1
+        mvn -B -q -P neo4j-$version -f benchmarks/pom.xml package || exit 1
+        cp benchmarks/target/benchmarks.jar "$jar"
+    fi
+    for heap in $heaps; do
+        echo "Measuring with Neo4j $version and a heap of $heap MB"
+        java -Xms${heap}m -Xmx${heap}m -cp "$jar" com.ekino.neo4j.traversal.MatrixBenchmark \
+            --output "$output/matrix.tsv" "${options[@]}" || exit 1
+    done
+done
+
+java -cp "$jar" com.ekino.neo4j.traversal.MatrixReport "$output/matrix.tsv" > "$output/matrix.md"
+echo "Tables written to $output/matrix.md"
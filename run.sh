@@ -21,17 +21,30 @@ declare clear_cache=no
 declare query
 declare iterations=100
 declare one_line=no
+declare cache_budget
+declare cache_stats=no
+declare concurrency=1
+declare check
 
 while [[ $# -gt 0 ]]; do
     case $1 in
         "--help")
-            printf "$0 [--help] [--no-warm-up] [--clear-cache] [--cache [cache1[,cache2[,...]]]] [-n iterations]\n"
-            printf "\t--cache        enable the named caches (label, property)\n"
+            printf "$0 [--help] [--no-warm-up] [--clear-cache] [--cache [cache1[,cache2[,...]]]] [--cache-budget MB] [--cache-stats] [--check engines] [--engine engine] [--parallel workers] [--start id] [--max-depth depth] [--timeout ms] [-c clients] [-n iterations]\n"
+            printf "\t-c             set the number of concurrent clients (default: 1)\n"
+            printf "\t--cache        enable the named caches (label, property, bitset, adjacency, result)\n"
+            printf "\t--cache-budget set the memory budget of each cache in MB (0: unbounded)\n"
+            printf "\t--cache-stats  print the statistics of the caches after measuring\n"
+            printf "\t--check        check once that the engines give the same count before measuring\n"
             printf "\t--clear-cache  clear the caches before each traversal\n"
+            printf "\t--engine       select the engine (framework, ids, core, cypher, scan, aggregate, projection)\n"
             printf "\t--help         this message\n"
+            printf "\t--max-depth    only count the nodes up to the given depth from the start node\n"
             printf "\t-n             set the number of iterations (default: 100)\n"
             printf "\t--no-warm-up   do not warm up before measuring\n"
             printf "\t--one-line     print the results on a single parseable line\n"
+            printf "\t--parallel     count the subtrees with the given number of workers\n"
+            printf "\t--start        count the subtree of the given node instead of the whole tree\n"
+            printf "\t--timeout      cancel the traversals running for longer than the given time in ms\n"
             exit 1
             ;;
         "--no-warm-up")
@@ -47,6 +60,41 @@ while [[ $# -gt 0 ]]; do
             shift
             query+=${query:+&}cache=$1
             ;;
+        "--engine")
+            shift
+            query+=${query:+&}engine=$1
+            ;;
+        "--parallel")
+            shift
+            query+=${query:+&}parallel=$1
+            ;;
+        "--start")
+            shift
+            query+=${query:+&}start=$1
+            ;;
+        "--max-depth")
+            shift
+            query+=${query:+&}maxDepth=$1
+            ;;
+        "--timeout")
+            shift
+            query+=${query:+&}timeout=$1
+            ;;
+        "--cache-budget")
+            shift
+            cache_budget=$1
+            ;;
+        "--cache-stats")
+            cache_stats=yes
+            ;;
+        "--check")
+            shift
+            check=$1
+            ;;
+        "-c")
+            shift
+            concurrency=$1
+            ;;
         "-n")
             shift
             iterations=$1
@@ -60,24 +108,59 @@ done
 
 query=${query:+?}$query
 
+declare url=localhost:7474/traversal-perfs
+
+if [ -n "$cache_budget" ]; then
+    curl -sS -o /dev/null "$url/cache/budget?label=$cache_budget&property=$cache_budget&adjacency=$cache_budget"
+fi
+
+if [ -n "$check" ]; then
+    # The check compares the count of the selected engine with the others, and fails with a 500 if they differ
+    declare checked=$(curl -sS -w '\t%{http_code}' "$url/traverse${query:-?}${query:+&}check=$check")
+    if [[ $checked != *$'\t'200 ]]; then
+        printf "Check failed: %s\n" "${checked%$'\t'*}" >&2
+        exit 1
+    fi
+fi
+
+declare clear
+if [ $clear_cache == "yes" ]; then
+    clear="curl -sS -o /dev/null $url/cache/clear; "
+fi
+
+# Run the given command for each iteration, from the given number of concurrent clients
+run_traversals() {
+    seq 1 $iterations | xargs -I {} -P $concurrency sh -c "$1"
+}
+
 if [ $warm_up == "yes" ]; then
-    [ $one_line == "no" ] && printf "Warming up"
-    for i in $(seq 1 $iterations); do
-        [ $one_line == "no" ] && printf "."
-        if [ $clear_cache == "yes" ]; then
-            curl -sS -o /dev/null localhost:7474/traversal-perfs/cache/clear
-        fi
-        curl -sS -o /dev/null localhost:7474/traversal-perfs/traverse$query
-    done
+    declare progress
+    [ $one_line == "no" ] && printf "Warming up" && progress="; printf ."
+    run_traversals "${clear}curl -sS -o /dev/null '$url/traverse$query'$progress"
     [ $one_line == "no" ] && printf "\n"
 fi
 
 [ $one_line == "no" ] && echo "Measuring"
-for i in $(seq 1 $iterations); do
-    if [ $clear_cache == "yes" ]; then
-        curl -sS -o /dev/null localhost:7474/traversal-perfs/cache/clear
-    fi
-    curl -w '%{time_total}\n' -sS -o /dev/null localhost:7474/traversal-perfs/traverse$query
-done |
+# Seconds are precise enough for the throughput, as the measure lasts much longer
+declare start=$(date +%s)
+run_traversals "${clear}curl -w '%{time_total}\\n' -sS -o /dev/null '$url/traverse$query'" |
     sort -n |
     awk -v one_line=$one_line -f quantiles.awk
+declare end=$(date +%s)
+
+if [ $concurrency -gt 1 ]; then
+    # The throughput shows how the traversals scale with the number of clients
+    awk -v start=$start -v end=$end -v iterations=$iterations -v one_line=$one_line 'BEGIN {
+        # Avoid a division by zero for very short runs
+        throughput = iterations / (end > start ? end - start : 1)
+        if (one_line == "yes") {
+            print throughput
+        } else {
+            print "Req/s\t" throughput
+        }
+    }'
+fi
+
+if [ $cache_stats == "yes" ]; then
+    curl -sS $url/cache/stats
+fi
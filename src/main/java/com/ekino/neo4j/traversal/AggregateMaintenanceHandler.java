@@ -0,0 +1,254 @@
+/*
+ * Copyright 2016 Frank Pavageau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ekino.neo4j.traversal;
+
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.TransientFailureException;
+import org.neo4j.graphdb.event.LabelEntry;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Transaction event handler maintaining the {@link SubtreeAggregates} after the commit of the writes: the changed nodes
+ * are collected before the commit, then a single background thread recomputes the aggregates of their {@code A}
+ * ancestors from their children, the deepest first, so the cost only depends on the depth of the tree and not on the
+ * size of the subtrees.
+ *
+ * Each aggregate is written in its own transaction, so the maintenance never holds more than the lock of the node it
+ * updates, and can't deadlock with the writers, which don't wait for it either. The aggregates are thus eventually
+ * consistent: they lag behind the writes until the changes queued so far have been processed, merged in a single pass
+ * if the writes come faster than the maintenance.
+ *
+ * A node changes the aggregates of its ancestors when its "value" property or one of its {@code A} and {@code B}
+ * labels changes, since they decide which children are expanded, or when a child is attached or detached. Nothing is
+ * done until the aggregates have been built.
+ */
+class AggregateMaintenanceHandler extends TransactionEventHandler.Adapter<LongSet> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AggregateMaintenanceHandler.class);
+
+    private static final ExecutorService MAINTAINER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "traversal-perfs-aggregates");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final GraphDatabaseService graphDb;
+    private final SubtreeAggregates aggregates;
+    // Guarded by this
+    private LongSet pendingNodeIds = new LongOpenHashSet();
+    private boolean scheduled;
+
+    public AggregateMaintenanceHandler(GraphDatabaseService graphDb) {
+        this.graphDb = graphDb;
+        aggregates = new SubtreeAggregates(graphDb);
+    }
+
+    /**
+     * Wait until the changes committed so far have been applied to the aggregates.
+     */
+    static void awaitMaintenance() throws InterruptedException {
+        try {
+            MAINTAINER.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to wait for the maintenance of the aggregates", e.getCause());
+        }
+    }
+
+    @Override
+    public LongSet beforeCommit(TransactionData data) throws Exception {
+        LongSet changedNodeIds = getChangedNodeIds(data);
+        return changedNodeIds.isEmpty() || !aggregates.isBuilt() ? null : changedNodeIds;
+    }
+
+    @Override
+    public void afterCommit(TransactionData data, LongSet changedNodeIds) {
+        if (changedNodeIds != null) {
+            schedule(changedNodeIds);
+        }
+    }
+
+    private void schedule(LongSet nodeIds) {
+        synchronized (this) {
+            pendingNodeIds.addAll(nodeIds);
+            if (scheduled) {
+                return;
+            }
+            scheduled = true;
+        }
+        MAINTAINER.execute(new Runnable() {
+            @Override
+            public void run() {
+                maintain();
+            }
+        });
+    }
+
+    private void maintain() {
+        LongSet nodeIds;
+        synchronized (this) {
+            nodeIds = pendingNodeIds;
+            pendingNodeIds = new LongOpenHashSet();
+            scheduled = false;
+        }
+        LongSet retriedNodeIds = new LongOpenHashSet();
+        try {
+            LongArrayList dirtyNodeIds;
+            try (Transaction ignored = graphDb.beginTx()) {
+                dirtyNodeIds = getDirtyAncestors(nodeIds);
+            }
+            for (int i = 0; i < dirtyNodeIds.size(); i++) {
+                long nodeId = dirtyNodeIds.getLong(i);
+                try (Transaction tx = graphDb.beginTx()) {
+                    aggregates.recompute(graphDb.getNodeById(nodeId));
+                    tx.success();
+                } catch (NotFoundException e) {
+                    // Deleted since, its former parent has been queued by the deleting transaction
+                } catch (TransientFailureException e) {
+                    // A lock of a writer, the node is recomputed again in the next pass
+                    retriedNodeIds.add(nodeId);
+                }
+            }
+        } catch (RuntimeException e) {
+            LOGGER.warn("Failed to maintain the aggregates of the ancestors of {} nodes", nodeIds.size(), e);
+        }
+        if (!retriedNodeIds.isEmpty()) {
+            schedule(retriedNodeIds);
+        }
+    }
+
+    /**
+     * @return The ids of the {@code A} ancestors of the nodes, the nodes themselves included, the deepest first
+     */
+    private LongArrayList getDirtyAncestors(LongSet nodeIds) {
+        final Long2IntMap depths = new Long2IntOpenHashMap();
+        LongArrayList dirtyNodeIds = new LongArrayList();
+        List<Node> ancestors = new ArrayList<>();
+        for (long nodeId : nodeIds) {
+            ancestors.clear();
+            try {
+                for (Node ancestor = graphDb.getNodeById(nodeId); ancestor != null;
+                     ancestor = SubtreeAggregates.getParent(ancestor)) {
+                    ancestors.add(ancestor);
+                }
+            } catch (NotFoundException e) {
+                // Deleted since, its former parent has been queued by the deleting transaction
+                continue;
+            }
+            for (int i = 0; i < ancestors.size(); i++) {
+                Node ancestor = ancestors.get(i);
+                if (ancestor.hasLabel(Labels.A) && !depths.containsKey(ancestor.getId())) {
+                    depths.put(ancestor.getId(), ancestors.size() - i);
+                    dirtyNodeIds.add(ancestor.getId());
+                }
+            }
+        }
+        Collections.sort(dirtyNodeIds, new Comparator<Long>() {
+            @Override
+            public int compare(Long nodeId1, Long nodeId2) {
+                return Integer.compare(depths.get((long) nodeId2), depths.get((long) nodeId1));
+            }
+        });
+        return dirtyNodeIds;
+    }
+
+    private static LongSet getChangedNodeIds(TransactionData data) {
+        LongSet nodeIds = new LongOpenHashSet();
+        for (PropertyEntry<Node> entry : data.assignedNodeProperties()) {
+            if (isValue(entry)) {
+                addIfAlive(data, nodeIds, entry.entity());
+            }
+        }
+        for (PropertyEntry<Node> entry : data.removedNodeProperties()) {
+            if (isValue(entry)) {
+                addIfAlive(data, nodeIds, entry.entity());
+            }
+        }
+        for (LabelEntry entry : data.assignedLabels()) {
+            if (isTreeLabel(entry)) {
+                addIfAlive(data, nodeIds, entry.node());
+            }
+        }
+        for (LabelEntry entry : data.removedLabels()) {
+            if (isTreeLabel(entry)) {
+                addIfAlive(data, nodeIds, entry.node());
+            }
+        }
+        // A created A node needs its own aggregate, even before being attached to the tree
+        for (Node node : data.createdNodes()) {
+            if (node.hasLabel(Labels.A)) {
+                nodeIds.add(node.getId());
+            }
+        }
+        for (Relationship relationship : data.createdRelationships()) {
+            if (isChildRelationship(relationship)) {
+                addIfAlive(data, nodeIds, relationship.getStartNode());
+            }
+        }
+        for (Relationship relationship : data.deletedRelationships()) {
+            if (isChildRelationship(relationship)) {
+                addIfAlive(data, nodeIds, relationship.getStartNode());
+            }
+        }
+        return nodeIds;
+    }
+
+    private static void addIfAlive(TransactionData data, LongSet nodeIds, Node node) {
+        if (!data.isDeleted(node)) {
+            nodeIds.add(node.getId());
+        }
+    }
+
+    private static boolean isValue(PropertyEntry<Node> entry) {
+        return PropertyKey.VALUE.getName().equals(entry.key());
+    }
+
+    private static boolean isTreeLabel(LabelEntry entry) {
+        String label = entry.label().name();
+        return Labels.A.name().equals(label) || Labels.B.name().equals(label);
+    }
+
+    private static boolean isChildRelationship(Relationship relationship) {
+        return relationship.isType(RelationshipTypes.HAS_A) || relationship.isType(RelationshipTypes.HAS_B);
+    }
+}
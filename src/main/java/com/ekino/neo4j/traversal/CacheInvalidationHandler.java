@@ -0,0 +1,75 @@
+/*
+ * Copyright 2016 Frank Pavageau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ekino.neo4j.traversal;
+
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.event.LabelEntry;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+/**
+ * Transaction event handler keeping the caches coherent with the writes: after each commit, the nodes whose labels or
+ * properties changed, and the deleted nodes, are removed from the caches. The other nodes stay cached.
+ *
+ * The start nodes of the created and deleted relationships are also removed from the adjacency cache. They're collected
+ * before the commit, while the deleted relationships can still be read.
+ */
+class CacheInvalidationHandler extends TransactionEventHandler.Adapter<LongSet> {
+    @Override
+    public LongSet beforeCommit(TransactionData data) throws Exception {
+        LongSet startNodeIds = new LongOpenHashSet();
+        for (Relationship relationship : data.createdRelationships()) {
+            startNodeIds.add(relationship.getStartNode().getId());
+        }
+        for (Relationship relationship : data.deletedRelationships()) {
+            startNodeIds.add(relationship.getStartNode().getId());
+        }
+        return startNodeIds;
+    }
+
+    @Override
+    public void afterCommit(TransactionData data, LongSet startNodeIds) {
+        LongSet nodeIds = new LongOpenHashSet();
+        for (LabelEntry entry : data.assignedLabels()) {
+            nodeIds.add(entry.node().getId());
+        }
+        for (LabelEntry entry : data.removedLabels()) {
+            nodeIds.add(entry.node().getId());
+        }
+        for (PropertyEntry<Node> entry : data.assignedNodeProperties()) {
+            nodeIds.add(entry.entity().getId());
+        }
+        for (PropertyEntry<Node> entry : data.removedNodeProperties()) {
+            nodeIds.add(entry.entity().getId());
+        }
+        // The ids of the deleted nodes can be reused by new nodes
+        for (Node node : data.deletedNodes()) {
+            nodeIds.add(node.getId());
+        }
+
+        for (LongIterator it = nodeIds.iterator(); it.hasNext(); ) {
+            Neo4jOperations.invalidateCache(it.nextLong());
+        }
+        for (LongIterator it = startNodeIds.iterator(); it.hasNext(); ) {
+            Neo4jOperations.invalidateAdjacencyCache(it.nextLong());
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2016 Frank Pavageau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ekino.neo4j.traversal;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Prewarming of the label and property caches, so that the first traversals after a restart don't pay for filling
+ * them one node at a time.
+ *
+ * The node ids are split into ranges, read in parallel by a pool of workers, each range in its own transaction: the
+ * labels of every node and the "value" property of the {@code B} nodes are read through the caches, exactly like the
+ * traversals read them. A throttle limits the number of nodes read per second, so the prewarming doesn't starve the
+ * live traversals.
+ *
+ * The prewarming runs in the background, and a single one runs at a time.
+ */
+class CachePrewarmer implements Runnable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CachePrewarmer.class);
+
+    static final String HEADER = "state\tnodes\thighId\telapsed\tnodes/s";
+
+    /**
+     * Number of node ids in a range.
+     */
+    private static final int RANGE_SIZE = 10_000;
+    private static final int PENDING_RANGES_PER_WORKER = 2;
+    private static final long AVAILABILITY_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+
+    private static CachePrewarmer current;
+
+    enum State {
+        WAITING, RUNNING, DONE, CANCELLED, FAILED
+    }
+
+    private final GraphDatabaseService graphDb;
+    private final int workers;
+    private final int rate;
+    private final AtomicLong nodes = new AtomicLong();
+    private volatile State state = State.WAITING;
+    private volatile long highId;
+    private volatile long startTime;
+    private volatile long endTime;
+
+    /**
+     * @param workers The number of workers
+     * @param rate The maximum number of node ids read per second, 0 for no limit
+     */
+    private CachePrewarmer(GraphDatabaseService graphDb, int workers, int rate) {
+        this.graphDb = graphDb;
+        this.workers = workers;
+        this.rate = rate;
+    }
+
+    /**
+     * Start prewarming the caches in the background, unless it's already running.
+     *
+     * @param workers The number of workers
+     * @param rate The maximum number of node ids read per second, 0 for no limit
+     * @return The running prewarming
+     */
+    public static synchronized CachePrewarmer start(GraphDatabaseService graphDb, int workers, int rate) {
+        if (current != null && !current.isOver()) {
+            return current;
+        }
+        current = new CachePrewarmer(graphDb, workers, rate);
+        Thread thread = new Thread(current, "traversal-perfs-prewarm");
+        thread.setDaemon(true);
+        thread.start();
+        return current;
+    }
+
+    /**
+     * @return The last prewarming, or {@code null} if there has been none
+     */
+    public static synchronized CachePrewarmer get() {
+        return current;
+    }
+
+    /**
+     * Cancel the running prewarming, if any, which stops after the ranges being read.
+     */
+    public static synchronized void cancel() {
+        if (current != null && !current.isOver()) {
+            current.state = State.CANCELLED;
+        }
+    }
+
+    /**
+     * Change the state under the same lock as {@link #cancel()}, unless it's not the expected one anymore, so that a
+     * concurrent cancellation isn't overwritten.
+     */
+    private void transition(State expected, State next) {
+        synchronized (CachePrewarmer.class) {
+            if (state == expected) {
+                state = next;
+            }
+        }
+    }
+
+    private boolean isOver() {
+        return state != State.WAITING && state != State.RUNNING;
+    }
+
+    @Override
+    public void run() {
+        // At startup, the database isn't available until all the kernel extensions have started
+        while (!graphDb.isAvailable(AVAILABILITY_TIMEOUT)) {
+            if (state == State.CANCELLED) {
+                return;
+            }
+        }
+        highId = Neo4jInternals.getNodeHighId(graphDb);
+        LOGGER.info("Prewarming the caches for {} node ids with {} workers{}", highId, workers,
+                rate > 0 ? " at " + rate + " nodes/s" : "");
+        startTime = System.nanoTime();
+        transition(State.WAITING, State.RUNNING);
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        Deque<Future<?>> pendingRanges = new ArrayDeque<>();
+        try {
+            for (long rangeStart = 0; rangeStart < highId && state == State.RUNNING; rangeStart += RANGE_SIZE) {
+                throttle(rangeStart);
+                pendingRanges.add(executor.submit(new Range(rangeStart, Math.min(rangeStart + RANGE_SIZE, highId))));
+                if (pendingRanges.size() >= PENDING_RANGES_PER_WORKER * workers) {
+                    pendingRanges.poll().get();
+                }
+            }
+            while (!pendingRanges.isEmpty()) {
+                pendingRanges.poll().get();
+            }
+            transition(State.RUNNING, State.DONE);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            state = State.CANCELLED;
+        } catch (ExecutionException e) {
+            LOGGER.warn("Failed to prewarm the caches", e.getCause());
+            state = State.FAILED;
+        } finally {
+            executor.shutdownNow();
+            endTime = System.nanoTime();
+        }
+        LOGGER.info("Prewarming {}: {}", state.name().toLowerCase(), this);
+    }
+
+    /**
+     * Wait until the range can be read without exceeding the rate.
+     */
+    private void throttle(long rangeStart) throws InterruptedException {
+        if (rate > 0) {
+            long delay = startTime + rangeStart * 1_000_000_000L / rate - System.nanoTime();
+            if (delay > 0) {
+                TimeUnit.NANOSECONDS.sleep(delay);
+            }
+        }
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return The progress on a single line, with the same columns as {@link #HEADER}
+     */
+    @Override
+    public String toString() {
+        long elapsed = startTime == 0 ? 0 : (isOver() ? endTime : System.nanoTime()) - startTime;
+        long warmed = nodes.get();
+        return state.name().toLowerCase() + "\t" + warmed + "\t" + highId + "\t" + elapsed / 1_000_000 + "\t" +
+                (elapsed > 0 ? warmed * 1_000_000_000L / elapsed : 0);
+    }
+
+    /**
+     * Range of node ids, read in its own transaction.
+     */
+    private class Range implements Runnable {
+        private final long start;
+        private final long end;
+
+        public Range(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public void run() {
+            Neo4jOperations neo4jOperations = Neo4jOperations.get("label,property");
+            long warmed = 0;
+            try (Transaction ignored = graphDb.beginTx()) {
+                for (long id = start; id < end && state == State.RUNNING; id++) {
+                    Node node;
+                    try {
+                        node = graphDb.getNodeById(id);
+                    } catch (NotFoundException e) {
+                        // Unused id
+                        continue;
+                    }
+                    // All the labels of the node are cached at once
+                    if (neo4jOperations.hasLabel(node, Labels.B)) {
+                        neo4jOperations.getBooleanProperty(node, PropertyKey.VALUE, false);
+                    }
+                    warmed++;
+                }
+            } finally {
+                nodes.addAndGet(warmed);
+            }
+        }
+    }
+}
@@ -15,20 +15,27 @@
  */
 package com.ekino.neo4j.traversal;
 
+import org.neo4j.graphdb.GraphDatabaseService;
+
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
+import java.io.IOException;
 
 /**
- * Resource to manage the object caches in Neo4j.
+ * Resource to manage the object caches in Neo4j, and the caches of the application.
  */
 @Path("/cache")
 @Produces(MediaType.TEXT_PLAIN)
 public class CacheResource {
+    private final GraphDatabaseService graphDb;
     private final CacheOperations cacheOperations;
 
-    public CacheResource() {
+    public CacheResource(@Context GraphDatabaseService graphDb) {
+        this.graphDb = graphDb;
         cacheOperations = CacheOperations.create();
     }
 
@@ -37,7 +44,81 @@ public class CacheResource {
     public String clear() {
         cacheOperations.clear();
         Neo4jOperations.clearCache();
+        ResultCache.INSTANCE.invalidate();
+
+        return "OK\n";
+    }
+
+    /**
+     * Change the memory budgets (in MB, 0 meaning unbounded) of the label, property and adjacency caches, emptying
+     * them.
+     */
+    @GET
+    @Path("/budget")
+    public String budget(@QueryParam("label") Integer labelBudget,
+                         @QueryParam("property") Integer propertyBudget,
+                         @QueryParam("adjacency") Integer adjacencyBudget) {
+        Neo4jOperations.setCacheBudgets(labelBudget, propertyBudget, adjacencyBudget);
+
+        return "OK\n";
+    }
+
+    @GET
+    @Path("/stats")
+    public String stats() {
+        StringBuilder sb = new StringBuilder(CacheStats.HEADER).append('\n');
+        for (CacheStats stats : Neo4jOperations.getCacheStats()) {
+            sb.append(stats).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Start prewarming the label and property caches in the background with the {@link CachePrewarmer}, unless it's
+     * already running, and report its progress.
+     *
+     * @param workersParameter The number of workers, 1 by default
+     * @param rateParameter The maximum number of nodes read per second, unlimited by default
+     */
+    @GET
+    @Path("/prewarm")
+    public String prewarm(@QueryParam("workers") Integer workersParameter,
+                          @QueryParam("rate") Integer rateParameter) {
+        int workers = workersParameter != null && workersParameter > 0 ? workersParameter : 1;
+        int rate = rateParameter != null && rateParameter > 0 ? rateParameter : 0;
+        return CachePrewarmer.HEADER + "\n" + CachePrewarmer.start(graphDb, workers, rate) + "\n";
+    }
+
+    @GET
+    @Path("/prewarm/status")
+    public String prewarmStatus() {
+        CachePrewarmer prewarmer = CachePrewarmer.get();
+        return CachePrewarmer.HEADER + "\n" + (prewarmer != null ? prewarmer + "\n" : "");
+    }
+
+    @GET
+    @Path("/prewarm/cancel")
+    public String cancelPrewarm() {
+        CachePrewarmer.cancel();
 
         return "OK\n";
     }
+
+    /**
+     * Save the label and property caches with the {@link CacheSnapshot}.
+     */
+    @GET
+    @Path("/snapshot/save")
+    public String saveSnapshot() throws IOException {
+        return new CacheSnapshot(graphDb).save() + "\n";
+    }
+
+    /**
+     * Restore the label and property caches from the {@link CacheSnapshot}, if it's still valid (-1 otherwise).
+     */
+    @GET
+    @Path("/snapshot/load")
+    public String loadSnapshot() throws IOException {
+        return new CacheSnapshot(graphDb).load() + "\n";
+    }
 }
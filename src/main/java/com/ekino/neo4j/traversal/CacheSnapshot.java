@@ -0,0 +1,205 @@
+/*
+ * Copyright 2016 Frank Pavageau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ekino.neo4j.traversal;
+
+import it.unimi.dsi.fastutil.longs.Long2ByteMap;
+import it.unimi.dsi.fastutil.longs.Long2ByteOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Snapshot of the label and property caches in a file, to restore them after a restart instead of reading the whole
+ * store again.
+ *
+ * The file is made of a header (magic number, version, last committed transaction and number of nodes), then of three
+ * columns: the node ids in ascending order, the bit mask of the cached labels of each node (-1 if they're not cached),
+ * and the state of the "value" property packed on 2 bits per node (not cached, absent, {@code true} or {@code false}).
+ * It's written sequentially through a channel, and read back by mapping it in memory.
+ *
+ * A snapshot is only valid for the transaction it was saved at: it's discarded if any transaction has been committed
+ * since, as the nodes written since can't be told apart.
+ */
+class CacheSnapshot {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CacheSnapshot.class);
+
+    /**
+     * System property enabling the restore at startup and the save at shutdown.
+     */
+    static final String ENABLED_PROPERTY = "traversal-perfs.cache.snapshot";
+    /**
+     * System property giving the path of the file, in the store directory by default.
+     */
+    static final String FILE_PROPERTY = "traversal-perfs.cache.snapshot.file";
+
+    private static final String DEFAULT_FILE_NAME = "traversal-perfs-cache.snapshot";
+    private static final int MAGIC = 0x54504353;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final byte NOT_CACHED = 0;
+
+    private final GraphDatabaseService graphDb;
+    private final Path file;
+
+    public CacheSnapshot(GraphDatabaseService graphDb) {
+        this.graphDb = graphDb;
+        String path = System.getProperty(FILE_PROPERTY);
+        file = path != null
+                ? new File(path).toPath()
+                : new File(Neo4jInternals.getStoreDir(graphDb), DEFAULT_FILE_NAME).toPath();
+    }
+
+    /**
+     * Save the caches, replacing the previous snapshot once the new one is complete.
+     *
+     * @return The number of nodes saved
+     */
+    public int save() throws IOException {
+        long start = System.currentTimeMillis();
+        long transactionId;
+        Long2ByteMap labels;
+        Long2ByteMap values;
+        // The caches are only consistent with a transaction if no commit invalidated them while they were copied
+        do {
+            transactionId = Neo4jInternals.getLastCommittedTransactionId(graphDb);
+            labels = new Long2ByteOpenHashMap();
+            labels.defaultReturnValue((byte) -1);
+            Neo4jLabelOperations.exportCache(labels);
+            values = new Long2ByteOpenHashMap();
+            values.defaultReturnValue(NOT_CACHED);
+            Neo4jPropertyOperations.exportBooleanCache(PropertyKey.VALUE, values);
+        } while (transactionId != Neo4jInternals.getLastCommittedTransactionId(graphDb));
+
+        LongSet nodeIdSet = new LongOpenHashSet(labels.keySet());
+        nodeIdSet.addAll(values.keySet());
+        long[] nodeIds = nodeIdSet.toLongArray();
+        Arrays.sort(nodeIds);
+
+        Path tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmpFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            buffer.putInt(MAGIC).putInt(VERSION).putLong(transactionId).putInt(nodeIds.length);
+            for (long nodeId : nodeIds) {
+                ensureRemaining(channel, buffer, 8);
+                buffer.putLong(nodeId);
+            }
+            for (long nodeId : nodeIds) {
+                ensureRemaining(channel, buffer, 1);
+                buffer.put(labels.get(nodeId));
+            }
+            for (int i = 0; i < nodeIds.length; i += 4) {
+                int packed = 0;
+                for (int j = 0; j < 4 && i + j < nodeIds.length; j++) {
+                    packed |= values.get(nodeIds[i + j]) << (2 * j);
+                }
+                ensureRemaining(channel, buffer, 1);
+                buffer.put((byte) packed);
+            }
+            write(channel, buffer);
+            channel.force(false);
+        }
+        Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        LOGGER.info("Saved the caches of {} nodes at transaction {} to {} in {} ms", nodeIds.length, transactionId,
+                file, System.currentTimeMillis() - start);
+        return nodeIds.length;
+    }
+
+    private static void ensureRemaining(FileChannel channel, ByteBuffer buffer, int length) throws IOException {
+        if (buffer.remaining() < length) {
+            write(channel, buffer);
+        }
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Restore the caches from the snapshot, if it's still valid: a stale snapshot is deleted.
+     *
+     * @return The number of nodes restored, or -1 if there's no valid snapshot
+     */
+    public int load() throws IOException {
+        if (!Files.exists(file)) {
+            LOGGER.info("No snapshot of the caches in {}", file);
+            return -1;
+        }
+        long start = System.currentTimeMillis();
+        long transactionId = Neo4jInternals.getLastCommittedTransactionId(graphDb);
+        int count;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                LOGGER.warn("Invalid snapshot of the caches in {}", file);
+                return -1;
+            }
+            long snapshotTransactionId = buffer.getLong(8);
+            count = buffer.getInt(16);
+            if (snapshotTransactionId != transactionId) {
+                LOGGER.info("Discarding the snapshot of the caches at transaction {}, the store is at transaction {}",
+                        snapshotTransactionId, transactionId);
+                Files.delete(file);
+                return -1;
+            }
+            if (buffer.limit() != HEADER_SIZE + 9L * count + (count + 3) / 4) {
+                LOGGER.warn("Truncated snapshot of the caches in {}", file);
+                return -1;
+            }
+
+            int labelsOffset = HEADER_SIZE + 8 * count;
+            int valuesOffset = labelsOffset + count;
+            for (int i = 0; i < count; i++) {
+                long nodeId = buffer.getLong(HEADER_SIZE + 8 * i);
+                byte labels = buffer.get(labelsOffset + i);
+                if (labels >= 0) {
+                    Neo4jLabelOperations.restoreCache(nodeId, labels);
+                }
+                byte value = (byte) ((buffer.get(valuesOffset + i / 4) >> (2 * (i % 4))) & 3);
+                if (value != NOT_CACHED) {
+                    Neo4jPropertyOperations.restoreBooleanCache(nodeId, PropertyKey.VALUE, value);
+                }
+            }
+        }
+        // The invalidations of a commit during the restore may have been overwritten
+        if (transactionId != Neo4jInternals.getLastCommittedTransactionId(graphDb)) {
+            LOGGER.info("Transactions committed while restoring the caches, clearing them");
+            Neo4jOperations.clearCache();
+            return -1;
+        }
+        LOGGER.info("Restored the caches of {} nodes at transaction {} from {} in {} ms", count, transactionId, file,
+                System.currentTimeMillis() - start);
+        return count;
+    }
+}
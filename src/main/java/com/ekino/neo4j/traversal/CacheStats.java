@@ -0,0 +1,97 @@
+/*
+ * Copyright 2016 Frank Pavageau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ekino.neo4j.traversal;
+
+/**
+ * Snapshot of the statistics of a cache.
+ */
+class CacheStats {
+    static final String HEADER = "cache\thits\tmisses\tevictions\trejections\tsize\tcapacity";
+
+    private final String name;
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final long rejections;
+    private final int size;
+    private final int capacity;
+
+    public CacheStats(String name, long hits, long misses, long evictions, long rejections, int size,
+                      int capacity) {
+        this.name = name;
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.rejections = rejections;
+        this.size = size;
+        this.capacity = capacity;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return The number of missed entries which were not admitted in the full cache
+     */
+    public long getRejections() {
+        return rejections;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return The maximum number of entries, or {@link ClockIndex#UNBOUNDED}
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Add the statistics of another part of the same cache.
+     *
+     * @param other The statistics of the other part
+     * @return The sum of the statistics
+     */
+    public CacheStats plus(CacheStats other) {
+        return new CacheStats(name, hits + other.hits, misses + other.misses, evictions + other.evictions,
+                rejections + other.rejections, size + other.size,
+                capacity == ClockIndex.UNBOUNDED ? capacity : capacity + other.capacity);
+    }
+
+    /**
+     * @return The statistics on a single line, with the same columns as {@link #HEADER}
+     */
+    @Override
+    public String toString() {
+        return name + "\t" + hits + "\t" + misses + "\t" + evictions + "\t" + rejections + "\t" + size + "\t" +
+                (capacity == ClockIndex.UNBOUNDED ? "unbounded" : String.valueOf(capacity));
+    }
+}
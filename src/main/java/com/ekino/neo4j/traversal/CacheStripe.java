@@ -0,0 +1,130 @@
+/*
+ * Copyright 2016 Frank Pavageau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ekino.neo4j.traversal;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Stripe of a concurrent cache keyed by node id: the lookups share the read lock of the stripe and never block each
+ * other, while the fills and evictions take its write lock, only blocking the lookups of the same stripe.
+ *
+ * Each invalidation increments the generation of the stripe: a fill is only accepted if the generation hasn't changed
+ * since before the value was read from Neo4j, otherwise it could be a value read before the commit which invalidated
+ * it.
+ */
+abstract class CacheStripe {
+    static final int STRIPES = 64;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    protected final Lock readLock = lock.readLock();
+    protected final Lock writeLock = lock.writeLock();
+    protected final ClockIndex index;
+    private volatile long generation;
+
+    protected CacheStripe(int capacity) {
+        index = new ClockIndex(capacity);
+    }
+
+    /**
+     * Compute the capacity of each stripe of a cache from its memory budget.
+     *
+     * @param budget The memory budget in MB, or 0 for an unbounded cache
+     * @param bytesPerEntry The estimated memory used by an entry
+     * @return The capacity of a stripe
+     */
+    public static int capacity(int budget, int bytesPerEntry) {
+        int capacity = ClockIndex.capacity(budget, bytesPerEntry);
+        if (capacity == ClockIndex.UNBOUNDED) {
+            return capacity;
+        }
+        return Math.max(1, capacity / STRIPES);
+    }
+
+    public static int stripe(long nodeId) {
+        return (int) (nodeId & (STRIPES - 1));
+    }
+
+    public static CacheStats stats(String name, CacheStripe[] stripes) {
+        CacheStats stats = null;
+        for (CacheStripe stripe : stripes) {
+            CacheStats stripeStats = stripe.stats(name);
+            stats = stats == null ? stripeStats : stats.plus(stripeStats);
+        }
+        return stats;
+    }
+
+    /**
+     * @return The generation to give back when filling the cache with a value read from Neo4j afterwards
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Check whether a value read from Neo4j can still be cached, called while holding the write lock.
+     *
+     * @param generation The generation before the value was read
+     * @return {@code true} if the stripe has been invalidated since
+     */
+    protected boolean isStale(long generation) {
+        return generation != this.generation;
+    }
+
+    public void invalidate(long nodeId) {
+        writeLock.lock();
+        try {
+            generation++;
+            int slot = index.remove(nodeId);
+            if (slot >= 0) {
+                releaseSlot(slot);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public void clear() {
+        writeLock.lock();
+        try {
+            generation++;
+            index.clear();
+            clearValues();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private CacheStats stats(String name) {
+        readLock.lock();
+        try {
+            return index.stats(name);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Release the values of a removed node, called while holding the write lock.
+     */
+    protected abstract void releaseSlot(int slot);
+
+    /**
+     * Release the values, called while holding the write lock.
+     */
+    protected abstract void clearValues();
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2016 Frank Pavageau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ekino.neo4j.traversal;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Index of the slots of a cache keyed by node id, the values being stored by the cache itself in arrays indexed by
+ * slot.
+ *
+ * When bounded, the slots are recycled using a generalized CLOCK policy approximating LFU: each slot has a small
+ * saturating frequency counter, incremented on every hit and decremented by the clock hand while it looks for a victim.
+ * New entries start with a null frequency, and are only admitted in place of the victim if they have been accessed more
+ * often recently, according to a small count-min sketch (TinyLFU admission): a one-off deep scan cannot flush the
+ * entries which are hit again and again.
+ *
+ * Lookups can run concurrently with each other (e.g. under a shared lock), as they only update counters: the hits and
+ * misses are atomic, the frequencies are approximations anyway. Any other call needs exclusive access.
+ */
+class ClockIndex {
+    static final int UNBOUNDED = -1;
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final byte MAX_FREQUENCY = 3;
+    private static final long FREE = -1;
+
+    private final int capacity;
+    private final FrequencySketch sketch;
+    private final Long2IntMap slots;
+    private long[] keys;
+    private byte[] frequencies;
+    private final IntArrayList freeSlots = new IntArrayList();
+    private int used;
+    private int hand;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private long evictions;
+    private long rejections;
+
+    /**
+     * @param capacity The maximum number of entries, or {@link #UNBOUNDED}
+     */
+    public ClockIndex(int capacity) {
+        this.capacity = capacity;
+        int initialCapacity = capacity == UNBOUNDED ? INITIAL_CAPACITY : capacity;
+        sketch = capacity == UNBOUNDED ? null : new FrequencySketch(capacity);
+        slots = new Long2IntOpenHashMap(initialCapacity);
+        slots.defaultReturnValue(-1);
+        keys = new long[initialCapacity];
+        frequencies = new byte[initialCapacity];
+    }
+
+    /**
+     * Compute the capacity of a cache from its memory budget.
+     *
+     * @param budget The memory budget in MB, or 0 for an unbounded cache
+     * @param bytesPerEntry The estimated memory used by an entry
+     * @return The capacity
+     */
+    public static int capacity(int budget, int bytesPerEntry) {
+        if (budget <= 0) {
+            return UNBOUNDED;
+        }
+        return (int) Math.min(Integer.MAX_VALUE - 8, ((long) budget << 20) / bytesPerEntry);
+    }
+
+    /**
+     * Find the slot of a key, counting the hit or the miss.
+     *
+     * @param key The key
+     * @return The slot, or -1 if the key is absent
+     */
+    public int find(long key) {
+        if (sketch != null) {
+            sketch.increment(key);
+        }
+        int slot = slots.get(key);
+        if (slot < 0) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+            if (frequencies[slot] < MAX_FREQUENCY) {
+                frequencies[slot]++;
+            }
+        }
+        return slot;
+    }
+
+    /**
+     * Find the slot of a key, without counting the access.
+     *
+     * @param key The key
+     * @return The slot, or -1 if the key is absent
+     */
+    public int peek(long key) {
+        return slots.get(key);
+    }
+
+    /**
+     * Allocate a slot for a key which is absent, evicting another key if the index is full. The caller is responsible
+     * for overwriting the value in the returned slot, and for growing its arrays to {@link #length()} when needed.
+     *
+     * @param key The key
+     * @return The slot, or -1 if the key is not admitted in the full index
+     */
+    public int allocate(long key) {
+        int slot;
+        if (!freeSlots.isEmpty()) {
+            slot = freeSlots.popInt();
+        } else if (used < keys.length) {
+            slot = used++;
+        } else if (capacity == UNBOUNDED) {
+            int length = keys.length * 2;
+            keys = Arrays.copyOf(keys, length);
+            frequencies = Arrays.copyOf(frequencies, length);
+            slot = used++;
+        } else {
+            slot = evict(key);
+            if (slot < 0) {
+                return slot;
+            }
+        }
+        keys[slot] = key;
+        frequencies[slot] = 0;
+        slots.put(key, slot);
+        return slot;
+    }
+
+    private int evict(long key) {
+        while (frequencies[hand] > 0) {
+            frequencies[hand]--;
+            hand = (hand + 1) % keys.length;
+        }
+        int slot = hand;
+        hand = (hand + 1) % keys.length;
+        if (sketch.frequency(key) <= sketch.frequency(keys[slot])) {
+            rejections++;
+            return -1;
+        }
+        slots.remove(keys[slot]);
+        evictions++;
+        return slot;
+    }
+
+    /**
+     * Remove a key, freeing its slot for the next allocation.
+     *
+     * @param key The key
+     * @return The freed slot, or -1 if the key was absent
+     */
+    public int remove(long key) {
+        int slot = slots.remove(key);
+        if (slot >= 0) {
+            keys[slot] = FREE;
+            frequencies[slot] = 0;
+            freeSlots.add(slot);
+        }
+        return slot;
+    }
+
+    /**
+     * @return The keys present in the index, in no particular order
+     */
+    public long[] keys() {
+        return slots.keySet().toLongArray();
+    }
+
+    /**
+     * @return The length of the arrays holding the values
+     */
+    public int length() {
+        return keys.length;
+    }
+
+    public void clear() {
+        slots.clear();
+        freeSlots.clear();
+        used = 0;
+        hand = 0;
+    }
+
+    public CacheStats stats(String name) {
+        return new CacheStats(name, hits.get(), misses.get(), evictions, rejections, slots.size(), capacity);
+    }
+
+    /**
+     * Count-min sketch with 4 rows of byte counters, estimating the recent frequency of the keys: the counters are
+     * halved once the number of increments reaches 10 times the width of the rows.
+     */
+    private static class FrequencySketch {
+        private static final long[] SEEDS = {
+                0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0xD6E8FEB86659FD93L
+        };
+        private static final int MAX_COUNT = 15;
+
+        private final byte[][] counters;
+        private final int mask;
+        private final int sampleSize;
+        private int increments;
+
+        public FrequencySketch(int capacity) {
+            int width = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+            counters = new byte[SEEDS.length][width];
+            mask = width - 1;
+            sampleSize = 10 * width;
+        }
+
+        public void increment(long key) {
+            for (int i = 0; i < SEEDS.length; i++) {
+                int index = index(key, i);
+                if (counters[i][index] < MAX_COUNT) {
+                    counters[i][index]++;
+                }
+            }
+            // Concurrent increments can be lost, hence the inequality
+            if (++increments >= sampleSize) {
+                halve();
+            }
+        }
+
+        public int frequency(long key) {
+            int frequency = MAX_COUNT;
+            for (int i = 0; i < SEEDS.length; i++) {
+                frequency = Math.min(frequency, counters[i][index(key, i)]);
+            }
+            return frequency;
+        }
+
+        private int index(long key, int row) {
+            long hash = (key + SEEDS[row]) * SEEDS[row];
+            return (int) (hash ^ (hash >>> 32)) & mask;
+        }
+
+        private void halve() {
+            for (byte[] row : counters) {
+                for (int i = 0; i < row.length; i++) {
+                    row[i] >>= 1;
+                }
+            }
+            increments = 0;
+        }
+    }
+}
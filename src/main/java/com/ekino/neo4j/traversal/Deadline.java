@@ -0,0 +1,87 @@
+/*
+ * Copyright 2016 Frank Pavageau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ekino.neo4j.traversal;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deadline of a traversal, checked cooperatively by its loops: once it has passed, or the traversal has been cancelled
+ * (or its thread interrupted), the next check throws a {@link TraversalCancelledException}, which releases the
+ * transaction and the memory of the traversal instead of letting it run to completion for nobody.
+ *
+ * The workers of a parallel traversal share the deadline of their request.
+ */
+final class Deadline {
+    /**
+     * No deadline, a wait which can still be interrupted. Being shared, it can't be cancelled: a traversal needing to
+     * be cancelled gets its own instance from {@link #after(long)}.
+     */
+    static final Deadline NONE = new Deadline(0);
+
+    /**
+     * Number of nodes visited between two checks, minus 1, as the checks aren't free.
+     */
+    static final int CHECK_INTERVAL_MASK = 1023;
+
+    private final long timeoutNanos;
+    private final long deadlineNanos;
+    private volatile boolean cancelled;
+
+    private Deadline(long timeoutNanos) {
+        this.timeoutNanos = timeoutNanos;
+        deadlineNanos = System.nanoTime() + timeoutNanos;
+    }
+
+    /**
+     * @param timeout The timeout in milliseconds, or 0 for no deadline
+     * @return A deadline starting now
+     */
+    public static Deadline after(long timeout) {
+        return timeout > 0 ? new Deadline(TimeUnit.MILLISECONDS.toNanos(timeout)) : new Deadline(0);
+    }
+
+    public boolean isBounded() {
+        return timeoutNanos > 0;
+    }
+
+    /**
+     * @return The time left in nanoseconds, possibly negative, or {@link Long#MAX_VALUE} without any deadline
+     */
+    public long remainingNanos() {
+        return isBounded() ? deadlineNanos - System.nanoTime() : Long.MAX_VALUE;
+    }
+
+    /**
+     * Make the next check fail, e.g. because nobody's waiting for the result anymore. Ignored by {@link #NONE}.
+     */
+    public void cancel() {
+        if (this != NONE) {
+            cancelled = true;
+        }
+    }
+
+    /**
+     * @throws TraversalCancelledException If the deadline has passed, or the traversal has been cancelled
+     */
+    public void check() {
+        if (cancelled || Thread.currentThread().isInterrupted()) {
+            throw new TraversalCancelledException(false);
+        }
+        if (isBounded() && deadlineNanos - System.nanoTime() < 0) {
+            throw new TraversalCancelledException(true);
+        }
+    }
+}
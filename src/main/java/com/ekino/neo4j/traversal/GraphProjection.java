@@ -0,0 +1,232 @@
+/*
+ * Copyright 2016 Frank Pavageau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ekino.neo4j.traversal;
+
+import it.unimi.dsi.fastutil.ints.IntArrayFIFOQueue;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.BitSet;
+import java.util.Collections;
+
+/**
+ * Read-only snapshot of the tree in a compressed sparse row structure, traversed without the Neo4j API.
+ *
+ * The nodes are numbered in breadth-first order from the root, so the children of a node are numbered contiguously and
+ * the child array of the usual CSR layout would be the identity: the children of node {@code i} are the nodes
+ * {@code offsets[i]} to {@code offsets[i + 1] - 1}. A node costs an offset, its Neo4j id (to start from any node),
+ * and a bit for the {@code B} label and another one for the "value" property.
+ *
+ * The projection isn't updated by the writes: it records the last committed transaction when it was built, to tell
+ * whether it's stale and needs to be refreshed.
+ */
+class GraphProjection {
+    private static final Logger LOGGER = LoggerFactory.getLogger(GraphProjection.class);
+
+    private static volatile GraphProjection current;
+
+    private final int[] offsets;
+    private final long[] nodeIds;
+    private final BitSet bNodes;
+    private final BitSet trueValues;
+    private final long transactionId;
+    private final long buildTime;
+
+    private GraphProjection(int[] offsets, long[] nodeIds, BitSet bNodes, BitSet trueValues, long transactionId,
+                            long buildTime) {
+        this.offsets = offsets;
+        this.nodeIds = nodeIds;
+        this.bNodes = bNodes;
+        this.trueValues = trueValues;
+        this.transactionId = transactionId;
+        this.buildTime = buildTime;
+    }
+
+    /**
+     * @return The current projection, or {@code null} if it hasn't been built
+     */
+    public static GraphProjection get() {
+        return current;
+    }
+
+    /**
+     * Build a new projection of the tree, replacing the current one once complete.
+     *
+     * @return The new projection, or {@code null} if there's no tree
+     */
+    public static GraphProjection build(GraphDatabaseService graphDb) {
+        long start = System.currentTimeMillis();
+        // Read before the snapshot, so a concurrent commit makes it look stale rather than up-to-date
+        long transactionId = Neo4jInternals.getLastCommittedTransactionId(graphDb);
+        LongArrayList nodeIds = new LongArrayList();
+        IntArrayList offsets = new IntArrayList();
+        BitSet bNodes = new BitSet();
+        BitSet trueValues = new BitSet();
+        try (Transaction ignored = graphDb.beginTx();
+             ResourceIterator<Node> roots = graphDb.findNodes(Labels.Root)) {
+            if (!roots.hasNext()) {
+                return null;
+            }
+            LOGGER.info("Building the projection of the tree");
+            nodeIds.add(roots.next().getId());
+            for (int i = 0; i < nodeIds.size(); i++) {
+                Node node = graphDb.getNodeById(nodeIds.getLong(i));
+                offsets.add(nodeIds.size());
+                if (node.hasLabel(Labels.B)) {
+                    bNodes.set(i);
+                }
+                if ((Boolean) node.getProperty(PropertyKey.VALUE.getName(), false)) {
+                    trueValues.set(i);
+                }
+                for (Relationship relationship : expand(node)) {
+                    nodeIds.add(relationship.getEndNode().getId());
+                }
+            }
+            offsets.add(nodeIds.size());
+        }
+
+        GraphProjection projection = new GraphProjection(offsets.toIntArray(), nodeIds.toLongArray(), bNodes,
+                trueValues, transactionId, System.currentTimeMillis() - start);
+        LOGGER.info("Built the projection of {} nodes ({} bytes) in {} ms", projection.size(),
+                projection.getMemorySize(), projection.getBuildTime());
+        current = projection;
+        return projection;
+    }
+
+    /**
+     * Build a new projection if there's none or if it's stale.
+     *
+     * @return The up-to-date projection, or {@code null} if there's no tree
+     */
+    public static GraphProjection refresh(GraphDatabaseService graphDb) {
+        GraphProjection projection = current;
+        if (projection != null && !projection.isStale(graphDb)) {
+            return projection;
+        }
+        return build(graphDb);
+    }
+
+    /**
+     * Expand the nodes like {@code CustomPathExpander}.
+     */
+    private static Iterable<Relationship> expand(Node node) {
+        if (node.hasLabel(Labels.A)) {
+            return node.getRelationships(Direction.OUTGOING, RelationshipTypes.HAS_B);
+        } else if (node.hasLabel(Labels.B)) {
+            return node.getRelationships(Direction.OUTGOING, RelationshipTypes.HAS_A);
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Count the matching nodes in a subtree by walking the arrays with a primitive stack or queue.
+     *
+     * @param startNodeId The Neo4j id of the root of the subtree
+     * @param depthFirst Whether to traverse the subtree depth-first, or breadth-first
+     * @return The number of matching nodes
+     * @throws IllegalArgumentException if the node isn't part of the projection
+     */
+    public int count(long startNodeId, boolean depthFirst) {
+        int start = indexOf(startNodeId);
+        if (start < 0) {
+            throw new IllegalArgumentException("Node " + startNodeId + " isn't in the projection");
+        }
+        return depthFirst ? countDepthFirst(start) : countBreadthFirst(start);
+    }
+
+    private int countDepthFirst(int start) {
+        IntArrayList stack = new IntArrayList();
+        stack.add(start);
+        int count = 0;
+        while (!stack.isEmpty()) {
+            int node = stack.popInt();
+            if (matches(node)) {
+                count++;
+            }
+            for (int child = offsets[node + 1] - 1; child >= offsets[node]; child--) {
+                stack.add(child);
+            }
+        }
+        return count;
+    }
+
+    private int countBreadthFirst(int start) {
+        IntArrayFIFOQueue queue = new IntArrayFIFOQueue();
+        queue.enqueue(start);
+        int count = 0;
+        while (!queue.isEmpty()) {
+            int node = queue.dequeueInt();
+            if (matches(node)) {
+                count++;
+            }
+            for (int child = offsets[node]; child < offsets[node + 1]; child++) {
+                queue.enqueue(child);
+            }
+        }
+        return count;
+    }
+
+    private boolean matches(int node) {
+        return bNodes.get(node) && trueValues.get(node);
+    }
+
+    /**
+     * Find a node in the projection with a linear scan, which is negligible compared to the traversal, rather than
+     * doubling the memory size with an index.
+     */
+    private int indexOf(long nodeId) {
+        for (int i = 0; i < nodeIds.length; i++) {
+            if (nodeIds[i] == nodeId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public boolean isStale(GraphDatabaseService graphDb) {
+        return Neo4jInternals.getLastCommittedTransactionId(graphDb) != transactionId;
+    }
+
+    public int size() {
+        return nodeIds.length;
+    }
+
+    /**
+     * @return The estimated memory used by the arrays, in bytes
+     */
+    public long getMemorySize() {
+        return 4L * offsets.length + 8L * nodeIds.length + bNodes.size() / 8 + trueValues.size() / 8;
+    }
+
+    /**
+     * @return The time it took to build the projection, in milliseconds
+     */
+    public long getBuildTime() {
+        return buildTime;
+    }
+
+    public long getTransactionId() {
+        return transactionId;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2016 Frank Pavageau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ekino.neo4j.traversal;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Ids of the leaves of a tree being populated, appended in order then read back in the same order, in chunks. The ids
+ * are kept in memory up to a threshold, then spilled to a temporary file, so a big level doesn't need a big heap.
+ *
+ * Not thread-safe: it's written and read by the thread coordinating the population.
+ */
+class LeafFrontier implements Closeable {
+    private final int spillThreshold;
+    private final LongArrayList memory = new LongArrayList();
+    private long size;
+    private Path file;
+    private DataOutputStream out;
+    private DataInputStream in;
+    private int memoryPosition;
+    private long read;
+
+    /**
+     * @param spillThreshold The maximum number of ids kept in memory
+     */
+    public LeafFrontier(int spillThreshold) {
+        this.spillThreshold = spillThreshold;
+    }
+
+    public void add(long[] ids) throws IOException {
+        if (out == null && memory.size() + ids.length > spillThreshold) {
+            file = Files.createTempFile("traversal-perfs-leaves", ".bin");
+            out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)));
+            for (int i = 0; i < memory.size(); i++) {
+                out.writeLong(memory.getLong(i));
+            }
+            memory.clear();
+        }
+        if (out != null) {
+            for (long id : ids) {
+                out.writeLong(id);
+            }
+        } else {
+            memory.addElements(memory.size(), ids);
+        }
+        size += ids.length;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public boolean isSpilled() {
+        return file != null;
+    }
+
+    /**
+     * Read the next ids, in the order they were added. No more ids can be added afterwards.
+     *
+     * @param max The maximum number of ids to read
+     * @return The next ids, or an empty array if they have all been read
+     */
+    public long[] next(int max) throws IOException {
+        int length = (int) Math.min(max, size - read);
+        if (file == null) {
+            long[] ids = Arrays.copyOfRange(memory.elements(), memoryPosition, memoryPosition + length);
+            memoryPosition += length;
+            read += length;
+            return ids;
+        }
+        if (in == null) {
+            out.close();
+            in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+        }
+        long[] ids = new long[length];
+        for (int i = 0; i < length; i++) {
+            ids[i] = in.readLong();
+        }
+        read += length;
+        return ids;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (in != null) {
+            in.close();
+        } else if (out != null) {
+            out.close();
+        }
+        if (file != null) {
+            Files.deleteIfExists(file);
+        }
+    }
+}
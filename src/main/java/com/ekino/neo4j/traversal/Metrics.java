@@ -0,0 +1,259 @@
+/*
+ * Copyright 2016 Frank Pavageau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ekino.neo4j.traversal;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Metrics of all the requests since the start, or since the last reset.
+ *
+ * The totals are striped by thread, each stripe padded to its own cache lines, so concurrent requests don't contend on
+ * the same counters when they record their {@link RequestMetrics}: the stripes are only summed when reading the totals.
+ */
+final class Metrics implements MetricsMBean {
+    static final Metrics INSTANCE = new Metrics();
+
+    private static final int STRIPES = 16;
+    /**
+     * Number of counters per stripe, more than the actual counters to avoid false sharing between stripes.
+     */
+    private static final int STRIDE = 32;
+
+    private static final int REQUESTS = 0;
+    private static final int NODES = 1;
+    private static final int RELATIONSHIPS = 2;
+    private static final int HAS_LABEL_CALLS = 3;
+    private static final int GET_PROPERTY_CALLS = 4;
+    private static final int LABEL_HITS = 5;
+    private static final int LABEL_MISSES = 6;
+    private static final int PROPERTY_HITS = 7;
+    private static final int PROPERTY_MISSES = 8;
+    private static final int WALL_TIME = 9;
+    private static final int ALLOCATED_BYTES = 10;
+    private static final int RESULT_HITS = 11;
+    private static final int RESULT_COALESCED = 12;
+    private static final int RESULT_MISSES = 13;
+    private static final int ADJACENCY_HITS = 14;
+    private static final int ADJACENCY_MISSES = 15;
+    private static final int REJECTED = 16;
+    private static final int TIMED_OUT = 17;
+    private static final int CANCELLED = 18;
+
+    private final AtomicLongArray counters = new AtomicLongArray(STRIPES * STRIDE);
+    private final AtomicLong maxWallTime = new AtomicLong();
+
+    private Metrics() {
+    }
+
+    public void record(RequestMetrics request) {
+        if (!RequestMetrics.ENABLED) {
+            return;
+        }
+        int offset = (int) (Thread.currentThread().getId() & (STRIPES - 1)) * STRIDE;
+        counters.incrementAndGet(offset + REQUESTS);
+        add(offset + NODES, request.nodes);
+        add(offset + RELATIONSHIPS, request.relationships);
+        add(offset + HAS_LABEL_CALLS, request.hasLabelCalls);
+        add(offset + GET_PROPERTY_CALLS, request.getPropertyCalls);
+        add(offset + LABEL_HITS, request.labelHits);
+        add(offset + LABEL_MISSES, request.labelMisses);
+        add(offset + PROPERTY_HITS, request.propertyHits);
+        add(offset + PROPERTY_MISSES, request.propertyMisses);
+        add(offset + WALL_TIME, request.wallTime);
+        add(offset + ALLOCATED_BYTES, request.allocatedBytes);
+        add(offset + RESULT_HITS, request.resultHits);
+        add(offset + RESULT_COALESCED, request.resultCoalesced);
+        add(offset + RESULT_MISSES, request.resultMisses);
+        add(offset + ADJACENCY_HITS, request.adjacencyHits);
+        add(offset + ADJACENCY_MISSES, request.adjacencyMisses);
+        add(offset + REJECTED, request.rejected);
+        add(offset + TIMED_OUT, request.timedOut);
+        add(offset + CANCELLED, request.cancelled);
+
+        long max;
+        while (request.wallTime > (max = maxWallTime.get()) && !maxWallTime.compareAndSet(max, request.wallTime)) {
+            // Retry
+        }
+    }
+
+    private void add(int index, long delta) {
+        if (delta != 0) {
+            counters.addAndGet(index, delta);
+        }
+    }
+
+    private long sum(int counter) {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += counters.get(i * STRIDE + counter);
+        }
+        return sum;
+    }
+
+    /**
+     * @return The totals by name, in a stable order
+     */
+    public Map<String, Long> snapshot() {
+        Map<String, Long> snapshot = new LinkedHashMap<>();
+        snapshot.put("requests", getRequests());
+        snapshot.put("nodes", getNodes());
+        snapshot.put("relationships", getRelationships());
+        snapshot.put("hasLabelCalls", getHasLabelCalls());
+        snapshot.put("getPropertyCalls", getGetPropertyCalls());
+        snapshot.put("labelCacheHits", getLabelCacheHits());
+        snapshot.put("labelCacheMisses", getLabelCacheMisses());
+        snapshot.put("propertyCacheHits", getPropertyCacheHits());
+        snapshot.put("propertyCacheMisses", getPropertyCacheMisses());
+        snapshot.put("wallTimeMillis", getWallTimeMillis());
+        snapshot.put("maxWallTimeMillis", getMaxWallTimeMillis());
+        snapshot.put("allocatedBytes", getAllocatedBytes());
+        snapshot.put("resultCacheHits", getResultCacheHits());
+        snapshot.put("resultCacheCoalesced", getResultCacheCoalesced());
+        snapshot.put("resultCacheMisses", getResultCacheMisses());
+        snapshot.put("adjacencyCacheHits", getAdjacencyCacheHits());
+        snapshot.put("adjacencyCacheMisses", getAdjacencyCacheMisses());
+        snapshot.put("rejectedRequests", getRejectedRequests());
+        snapshot.put("timedOutRequests", getTimedOutRequests());
+        snapshot.put("cancelledRequests", getCancelledRequests());
+        snapshot.put("activeTraversals", (long) getActiveTraversals());
+        snapshot.put("queuedTraversals", (long) getQueuedTraversals());
+        return snapshot;
+    }
+
+    @Override
+    public long getRequests() {
+        return sum(REQUESTS);
+    }
+
+    @Override
+    public long getNodes() {
+        return sum(NODES);
+    }
+
+    @Override
+    public long getRelationships() {
+        return sum(RELATIONSHIPS);
+    }
+
+    @Override
+    public long getHasLabelCalls() {
+        return sum(HAS_LABEL_CALLS);
+    }
+
+    @Override
+    public long getGetPropertyCalls() {
+        return sum(GET_PROPERTY_CALLS);
+    }
+
+    @Override
+    public long getLabelCacheHits() {
+        return sum(LABEL_HITS);
+    }
+
+    @Override
+    public long getLabelCacheMisses() {
+        return sum(LABEL_MISSES);
+    }
+
+    @Override
+    public long getPropertyCacheHits() {
+        return sum(PROPERTY_HITS);
+    }
+
+    @Override
+    public long getPropertyCacheMisses() {
+        return sum(PROPERTY_MISSES);
+    }
+
+    @Override
+    public long getWallTimeMillis() {
+        return sum(WALL_TIME) / 1_000_000;
+    }
+
+    @Override
+    public long getMaxWallTimeMillis() {
+        return maxWallTime.get() / 1_000_000;
+    }
+
+    @Override
+    public long getAllocatedBytes() {
+        return sum(ALLOCATED_BYTES);
+    }
+
+    @Override
+    public long getResultCacheHits() {
+        return sum(RESULT_HITS);
+    }
+
+    @Override
+    public long getResultCacheCoalesced() {
+        return sum(RESULT_COALESCED);
+    }
+
+    @Override
+    public long getResultCacheMisses() {
+        return sum(RESULT_MISSES);
+    }
+
+    @Override
+    public long getAdjacencyCacheHits() {
+        return sum(ADJACENCY_HITS);
+    }
+
+    @Override
+    public long getAdjacencyCacheMisses() {
+        return sum(ADJACENCY_MISSES);
+    }
+
+    @Override
+    public long getRejectedRequests() {
+        return sum(REJECTED);
+    }
+
+    @Override
+    public long getTimedOutRequests() {
+        return sum(TIMED_OUT);
+    }
+
+    @Override
+    public long getCancelledRequests() {
+        return sum(CANCELLED);
+    }
+
+    @Override
+    public int getActiveTraversals() {
+        return TraversalExecutor.INSTANCE.getActiveCount();
+    }
+
+    @Override
+    public int getQueuedTraversals() {
+        return TraversalExecutor.INSTANCE.getQueueSize();
+    }
+
+    /**
+     * Reset the totals, which isn't atomic with respect to the requests being recorded.
+     */
+    @Override
+    public void reset() {
+        for (int i = 0; i < counters.length(); i++) {
+            counters.set(i, 0);
+        }
+        maxWallTime.set(0);
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2016 Frank Pavageau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ekino.neo4j.traversal;
+
+/**
+ * JMX view of the {@link Metrics}, registered by the kernel extension.
+ */
+public interface MetricsMBean {
+    String OBJECT_NAME = "com.ekino.neo4j.traversal:type=Metrics";
+
+    long getRequests();
+
+    long getNodes();
+
+    long getRelationships();
+
+    long getHasLabelCalls();
+
+    long getGetPropertyCalls();
+
+    long getLabelCacheHits();
+
+    long getLabelCacheMisses();
+
+    long getPropertyCacheHits();
+
+    long getPropertyCacheMisses();
+
+    long getWallTimeMillis();
+
+    long getMaxWallTimeMillis();
+
+    long getAllocatedBytes();
+
+    long getResultCacheHits();
+
+    /**
+     * @return The number of requests which waited for the result of an identical request instead of traversing the tree
+     */
+    long getResultCacheCoalesced();
+
+    long getResultCacheMisses();
+
+    long getAdjacencyCacheHits();
+
+    long getAdjacencyCacheMisses();
+
+    /**
+     * @return The number of requests rejected because too many traversals were already running or queued
+     */
+    long getRejectedRequests();
+
+    long getTimedOutRequests();
+
+    /**
+     * @return The number of traversals cancelled before their deadline, e.g. because the request was interrupted
+     */
+    long getCancelledRequests();
+
+    int getActiveTraversals();
+
+    int getQueuedTraversals();
+
+    void reset();
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2016 Frank Pavageau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ekino.neo4j.traversal;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import java.util.Map;
+
+/**
+ * Resource exposing the {@link Metrics} of the traversals, one per line, also available through JMX.
+ */
+@Path("/metrics")
+@Produces(MediaType.TEXT_PLAIN)
+public class MetricsResource {
+    @GET
+    public String metrics() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Long> metric : Metrics.INSTANCE.snapshot().entrySet()) {
+            sb.append(metric.getKey()).append('\t').append(metric.getValue()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    @GET
+    @Path("/reset")
+    public String reset() {
+        Metrics.INSTANCE.reset();
+
+        return "OK\n";
+    }
+}
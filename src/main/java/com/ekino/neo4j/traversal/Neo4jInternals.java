@@ -0,0 +1,81 @@
+/*
+ * Copyright 2016 Frank Pavageau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ekino.neo4j.traversal;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+
+/**
+ * Access to the internal API of Neo4j, deprecated since it's not meant for extensions, but without any public
+ * equivalent yet. The rest of the code goes through this class, so that the deprecated types are referenced in a
+ * single place.
+ */
+final class Neo4jInternals {
+    private Neo4jInternals() {
+    }
+
+    /**
+     * Get an internal component of the database, e.g. the {@link org.neo4j.kernel.impl.core.NodeManager} to create
+     * node proxies without checking that the nodes exist.
+     *
+     * @param graphDb The database
+     * @param type The type of the component
+     * @return The component
+     */
+    // The dependency resolver is only exposed by GraphDatabaseAPI
+    @SuppressWarnings("deprecation")
+    static <T> T resolveDependency(GraphDatabaseService graphDb, Class<T> type) {
+        return ((org.neo4j.kernel.GraphDatabaseAPI) graphDb).getDependencyResolver().resolveDependency(type);
+    }
+
+    /**
+     * @param graphDb The database
+     * @return The highest node id in use plus one, from the id generator instead of scanning all the nodes
+     */
+    // IdGeneratorFactory and IdType are deprecated along with GraphDatabaseAPI
+    @SuppressWarnings("deprecation")
+    static long getNodeHighId(GraphDatabaseService graphDb) {
+        return resolveDependency(graphDb, org.neo4j.kernel.IdGeneratorFactory.class)
+                .get(org.neo4j.kernel.IdType.NODE).getHighId();
+    }
+
+    /**
+     * @param graphDb The database
+     * @return The id of the last committed transaction, which changes with every write to the store
+     */
+    static long getLastCommittedTransactionId(GraphDatabaseService graphDb) {
+        return resolveDependency(graphDb, org.neo4j.kernel.impl.transaction.log.TransactionIdStore.class)
+                .getLastCommittedTransactionId();
+    }
+
+    /**
+     * @param graphDb The database
+     * @return The directory of the store of the database
+     */
+    // There's no other way for an extension to know where the store is
+    @SuppressWarnings("deprecation")
+    static String getStoreDir(GraphDatabaseService graphDb) {
+        return ((org.neo4j.kernel.GraphDatabaseAPI) graphDb).getStoreDir();
+    }
+
+    /**
+     * @return The version of the Neo4j kernel on the classpath, e.g. "2.2.8"
+     */
+    // The public API only gives the version of a running server, through its REST API
+    @SuppressWarnings("deprecation")
+    static String getKernelVersion() {
+        return org.neo4j.kernel.Version.getKernel().getReleaseVersion();
+    }
+}
@@ -16,54 +16,56 @@
 package com.ekino.neo4j.traversal;
 
 import it.unimi.dsi.fastutil.longs.Long2ByteMap;
-import it.unimi.dsi.fastutil.longs.Long2ByteOpenHashMap;
 import org.neo4j.graphdb.Label;
 import org.neo4j.graphdb.Node;
 
+import java.util.Arrays;
+
 /**
  * Facade for Neo4j operations on labels, to allow caching.
  */
 enum Neo4jLabelOperations {
     DEFAULT,
     CACHE {
-        private final Long2ByteMap labelCache = new Long2ByteOpenHashMap();
+        /**
+         * Estimated memory used by an entry: the key and slot in the index (with its load factor), the key and
+         * frequency in the clock, the counters in the frequency sketch, and the labels.
+         */
+        private static final int BYTES_PER_ENTRY = 40;
 
-        {
-            labelCache.defaultReturnValue((byte) -1);
-        }
+        private volatile LabelStripe[] stripes = newStripes(Integer.getInteger(BUDGET_PROPERTY, 0));
 
         @Override
-        public boolean hasLabel(Node node, Label label) {
+        public boolean hasLabel(Node node, Label label, RequestMetrics metrics) {
             if (label instanceof Labels) {
-                return hasCacheableLabel(node, ((Labels) label));
+                return hasCacheableLabel(node, ((Labels) label), metrics);
             }
             return node.hasLabel(label);
         }
 
-        private synchronized boolean hasCacheableLabel(Node node, Labels label) {
-            byte val = labelCache.get(node.getId());
-            boolean hasLabel;
+        private boolean hasCacheableLabel(Node node, Labels label, RequestMetrics metrics) {
+            long nodeId = node.getId();
+            LabelStripe stripe = stripes[CacheStripe.stripe(nodeId)];
+            long generation = stripe.getGeneration();
+            byte val = stripe.get(nodeId);
+            metrics.labelCacheHit(val >= 0);
             if (val < 0) {
-                hasLabel = checkLabelAndCache(node, label);
-            } else {
-                hasLabel = (val & getLabelMask(label)) != 0;
+                val = getCacheableLabels(node);
+                stripe.put(nodeId, val, generation);
             }
-            return hasLabel;
+            return (val & getLabelMask(label)) != 0;
         }
 
-        private boolean checkLabelAndCache(Node node, Labels label) {
+        private byte getCacheableLabels(Node node) {
             byte val = 0;
-            boolean hasLabel = false;
             for (Label nodeLabel : node.getLabels()) {
                 Labels appLabel = Labels.getByName(nodeLabel.name());
                 // We're only interested in caching the labels in the enum.
                 if (appLabel != null) {
                     val |= getLabelMask(appLabel);
-                    hasLabel |= appLabel == label;
                 }
             }
-            labelCache.put(node.getId(), val);
-            return hasLabel;
+            return val;
         }
 
         private byte getLabelMask(Labels label) {
@@ -71,16 +73,79 @@ enum Neo4jLabelOperations {
         }
 
         @Override
-        protected synchronized void clear() {
-            labelCache.clear();
+        protected void clear() {
+            for (LabelStripe stripe : stripes) {
+                stripe.clear();
+            }
+        }
+
+        @Override
+        protected void invalidate(long nodeId) {
+            stripes[CacheStripe.stripe(nodeId)].invalidate(nodeId);
+        }
+
+        @Override
+        protected void setBudget(int budget) {
+            stripes = newStripes(budget);
+        }
+
+        @Override
+        protected CacheStats stats() {
+            return CacheStripe.stats("label", stripes);
+        }
+
+        @Override
+        protected void export(Long2ByteMap labels) {
+            for (LabelStripe stripe : stripes) {
+                stripe.export(labels);
+            }
+        }
+
+        @Override
+        protected void restore(long nodeId, byte labels) {
+            LabelStripe stripe = stripes[CacheStripe.stripe(nodeId)];
+            stripe.put(nodeId, labels, stripe.getGeneration());
+        }
+
+        private LabelStripe[] newStripes(int budget) {
+            LabelStripe[] newStripes = new LabelStripe[CacheStripe.STRIPES];
+            for (int i = 0; i < newStripes.length; i++) {
+                newStripes[i] = new LabelStripe(CacheStripe.capacity(budget, BYTES_PER_ENTRY));
+            }
+            return newStripes;
         }
 
         @Override
         public String toString() {
             return "CACHE";
         }
+    },
+    /**
+     * Labels of the tree read from the {@link NodeFlagsCache}.
+     */
+    BITSET {
+        @Override
+        public boolean hasLabel(Node node, Label label, RequestMetrics metrics) {
+            if (label == Labels.A) {
+                return (NodeFlagsCache.INSTANCE.get(node, metrics) & NodeFlagsCache.A) != 0;
+            }
+            if (label == Labels.B) {
+                return (NodeFlagsCache.INSTANCE.get(node, metrics) & NodeFlagsCache.B) != 0;
+            }
+            return node.hasLabel(label);
+        }
+
+        @Override
+        public String toString() {
+            return "BITSET";
+        }
     };
 
+    /**
+     * System property giving the initial memory budget of the cache, in MB (unbounded by default).
+     */
+    static final String BUDGET_PROPERTY = "traversal-perfs.cache.label.budget";
+
     public static Neo4jLabelOperations get(boolean cache) {
         if (cache) {
             return CACHE;
@@ -92,10 +157,138 @@ enum Neo4jLabelOperations {
         CACHE.clear();
     }
 
-    public boolean hasLabel(Node node, Label label) {
+    /**
+     * Remove a node from the cache, after its labels changed or it was deleted.
+     *
+     * @param nodeId The id of the node
+     */
+    public static void invalidateCache(long nodeId) {
+        CACHE.invalidate(nodeId);
+    }
+
+    /**
+     * Change the memory budget of the cache, emptying it.
+     *
+     * @param budget The memory budget in MB, or 0 for an unbounded cache
+     */
+    public static void setCacheBudget(int budget) {
+        CACHE.setBudget(budget);
+    }
+
+    public static CacheStats getCacheStats() {
+        return CACHE.stats();
+    }
+
+    /**
+     * Copy the content of the cache, to save it.
+     *
+     * @param labels The map receiving the cached labels of each node, as a bit mask of the {@link Labels} ordinals
+     */
+    public static void exportCache(Long2ByteMap labels) {
+        CACHE.export(labels);
+    }
+
+    /**
+     * Fill the cache with the labels of a node, previously exported and still valid.
+     *
+     * @param nodeId The id of the node
+     * @param labels The labels of the node, as a bit mask of the {@link Labels} ordinals
+     */
+    public static void restoreCache(long nodeId, byte labels) {
+        CACHE.restore(nodeId, labels);
+    }
+
+    /**
+     * @param metrics The metrics of the request, counting the cache hits and misses
+     */
+    public boolean hasLabel(Node node, Label label, RequestMetrics metrics) {
         return node.hasLabel(label);
     }
 
     protected void clear() {
     }
+
+    protected void invalidate(long nodeId) {
+    }
+
+    protected void setBudget(int budget) {
+    }
+
+    /**
+     * @return The statistics of the cache, empty when nothing is cached
+     */
+    protected CacheStats stats() {
+        return new CacheStats("label", 0, 0, 0, 0, 0, 0);
+    }
+
+    protected void export(Long2ByteMap labels) {
+    }
+
+    protected void restore(long nodeId, byte labels) {
+    }
+
+    private static class LabelStripe extends CacheStripe {
+        private byte[] labels = new byte[index.length()];
+
+        public LabelStripe(int capacity) {
+            super(capacity);
+        }
+
+        /**
+         * @return The cached labels of the node, or -1 if they're absent
+         */
+        public byte get(long nodeId) {
+            readLock.lock();
+            try {
+                int slot = index.find(nodeId);
+                return slot < 0 ? -1 : labels[slot];
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        public void put(long nodeId, byte val, long generation) {
+            writeLock.lock();
+            try {
+                if (isStale(generation)) {
+                    return;
+                }
+                int slot = index.peek(nodeId);
+                if (slot < 0) {
+                    slot = index.allocate(nodeId);
+                    if (slot < 0) {
+                        // Not admitted in the full cache
+                        return;
+                    }
+                    if (slot >= labels.length) {
+                        labels = Arrays.copyOf(labels, index.length());
+                    }
+                }
+                labels[slot] = val;
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        public void export(Long2ByteMap nodeLabels) {
+            readLock.lock();
+            try {
+                for (long nodeId : index.keys()) {
+                    nodeLabels.put(nodeId, labels[index.peek(nodeId)]);
+                }
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        protected void releaseSlot(int slot) {
+            // Nothing to release
+        }
+
+        @Override
+        protected void clearValues() {
+            // Nothing to release
+        }
+    }
 }
@@ -15,49 +15,179 @@
  */
 package com.ekino.neo4j.traversal;
 
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 import org.neo4j.graphdb.Label;
 import org.neo4j.graphdb.Node;
 
+import java.util.Arrays;
+import java.util.List;
+
 /**
  * Facade for some Neo4j operations, to allow caching.
  */
 class Neo4jOperations {
-    private static final Neo4jOperations DEFAULT = new Neo4jOperations(
-            Neo4jLabelOperations.get(false),
-            Neo4jPropertyOperations.get(false));
-
     private final Neo4jLabelOperations labelOperations;
     private final Neo4jPropertyOperations propertyOperations;
+    private final Neo4jRelationshipOperations relationshipOperations;
+    private final RequestMetrics metrics = new RequestMetrics();
 
-    private Neo4jOperations(Neo4jLabelOperations labelOperations, Neo4jPropertyOperations propertyOperations) {
+    private Neo4jOperations(Neo4jLabelOperations labelOperations, Neo4jPropertyOperations propertyOperations,
+                            Neo4jRelationshipOperations relationshipOperations) {
         this.labelOperations = labelOperations;
         this.propertyOperations = propertyOperations;
+        this.relationshipOperations = relationshipOperations;
     }
 
+    /**
+     * Get the operations of a request, with its own metrics.
+     *
+     * @param cache The names of the caches to use
+     * @return The operations
+     */
     public static Neo4jOperations get(String cache) {
-        if (cache == null || cache.isEmpty()) {
-            return DEFAULT;
+        boolean noCache = cache == null || cache.isEmpty();
+        Neo4jRelationshipOperations relationshipOperations =
+                Neo4jRelationshipOperations.get(!noCache && cache.contains("adjacency"));
+        if (!noCache && cache.contains("bitset")) {
+            // Replaces both the label and property caches
+            return new Neo4jOperations(Neo4jLabelOperations.BITSET, Neo4jPropertyOperations.BITSET,
+                    relationshipOperations);
         }
         return new Neo4jOperations(
-                Neo4jLabelOperations.get(cache.contains("label")),
-                Neo4jPropertyOperations.get(cache.contains("property")));
+                Neo4jLabelOperations.get(!noCache && cache.contains("label")),
+                Neo4jPropertyOperations.get(!noCache && cache.contains("property")),
+                relationshipOperations);
     }
 
     public static void clearCache() {
         Neo4jLabelOperations.clearCache();
         Neo4jPropertyOperations.clearCache();
+        Neo4jRelationshipOperations.clearCache();
+        NodeFlagsCache.INSTANCE.clear();
+    }
+
+    /**
+     * Remove a node from the caches, after its labels or properties changed or it was deleted.
+     *
+     * @param nodeId The id of the node
+     */
+    public static void invalidateCache(long nodeId) {
+        Neo4jLabelOperations.invalidateCache(nodeId);
+        Neo4jPropertyOperations.invalidateCache(nodeId);
+        Neo4jRelationshipOperations.invalidateCache(nodeId);
+        NodeFlagsCache.INSTANCE.invalidate(nodeId);
+    }
+
+    /**
+     * Remove a node from the adjacency cache, after one of its outgoing relationships was created or deleted.
+     *
+     * @param nodeId The id of the node
+     */
+    public static void invalidateAdjacencyCache(long nodeId) {
+        Neo4jRelationshipOperations.invalidateCache(nodeId);
+    }
+
+    /**
+     * Change the memory budgets of the caches, emptying them.
+     *
+     * @param labelBudget The memory budget of the label cache in MB, 0 for an unbounded cache, or {@code null} to keep
+     *                    it unchanged
+     * @param propertyBudget The memory budget of the property cache in MB, 0 for an unbounded cache, or {@code null} to
+     *                       keep it unchanged
+     * @param adjacencyBudget The memory budget of the adjacency cache in MB, 0 for an unbounded cache, or {@code null}
+     *                        to keep it unchanged
+     */
+    public static void setCacheBudgets(Integer labelBudget, Integer propertyBudget, Integer adjacencyBudget) {
+        if (labelBudget != null) {
+            Neo4jLabelOperations.setCacheBudget(labelBudget);
+        }
+        if (propertyBudget != null) {
+            Neo4jPropertyOperations.setCacheBudget(propertyBudget);
+        }
+        if (adjacencyBudget != null) {
+            Neo4jRelationshipOperations.setCacheBudget(adjacencyBudget);
+        }
+    }
+
+    public static List<CacheStats> getCacheStats() {
+        return Arrays.asList(Neo4jLabelOperations.getCacheStats(), Neo4jPropertyOperations.getCacheStats(),
+                NodeFlagsCache.INSTANCE.stats(), Neo4jRelationshipOperations.getCacheStats());
+    }
+
+    /**
+     * @return The operations of a worker of the same request, with its own metrics to be added to the request's
+     */
+    public Neo4jOperations forWorker() {
+        return new Neo4jOperations(labelOperations, propertyOperations, relationshipOperations);
+    }
+
+    public RequestMetrics getMetrics() {
+        return metrics;
     }
 
     public boolean hasLabel(Node node, Label label) {
-        return labelOperations.hasLabel(node, label);
+        metrics.hasLabel();
+        return labelOperations.hasLabel(node, label, metrics);
     }
 
     public Object getProperty(Node node, String property) {
-        return propertyOperations.getProperty(node, property);
+        return getProperty(node, PropertyKey.of(property));
+    }
+
+    public Object getProperty(Node node, PropertyKey key) {
+        metrics.getProperty();
+        return propertyOperations.getProperty(node, key, metrics);
+    }
+
+    /**
+     * Get the labels of the tree and the "value" property of a node at once, to decide whether to include the node and
+     * how to expand it: a single lookup with the bitset cache, or the usual calls, as few as possible, otherwise.
+     *
+     * @param node The node
+     * @return The {@link NodeFlagsCache} flags of the node
+     */
+    public int getTreeFlags(Node node) {
+        if (labelOperations == Neo4jLabelOperations.BITSET) {
+            metrics.hasLabel();
+            return NodeFlagsCache.INSTANCE.get(node, metrics);
+        }
+        // A node can have both labels, it's then expanded as an A node but can match as a B node
+        int flags = hasLabel(node, Labels.A) ? NodeFlagsCache.KNOWN | NodeFlagsCache.A : NodeFlagsCache.KNOWN;
+        if (hasLabel(node, Labels.B)) {
+            flags |= getBooleanProperty(node, PropertyKey.VALUE, false)
+                    ? NodeFlagsCache.B | NodeFlagsCache.TRUE_VALUE
+                    : NodeFlagsCache.B;
+        }
+        return flags;
+    }
+
+    /**
+     * Get the ids of the children of a node, without creating the relationships when the adjacency cache has them.
+     *
+     * @param node The node
+     * @param type The type of the outgoing relationships to the children
+     * @param childIds The list receiving the ids of the children, in no particular order
+     */
+    public void getChildIds(Node node, RelationshipTypes type, LongArrayList childIds) {
+        relationshipOperations.getChildIds(node, type, childIds, metrics);
+    }
+
+    /**
+     * Get a boolean property without boxing it or throwing if it's absent.
+     *
+     * @param node The node
+     * @param key The key of the property
+     * @param defaultValue The value returned if the property is absent
+     * @return The value of the property
+     */
+    public boolean getBooleanProperty(Node node, PropertyKey key, boolean defaultValue) {
+        metrics.getProperty();
+        return propertyOperations.getBooleanProperty(node, key, defaultValue, metrics);
     }
 
     @Override
     public String toString() {
-        return "Neo4jOperations(" + labelOperations + ", " + propertyOperations + ")";
+        return "Neo4jOperations(" + labelOperations + ", " + propertyOperations + ", " + relationshipOperations +
+                ")";
     }
 }
@@ -15,13 +15,11 @@
  */
 package com.ekino.neo4j.traversal;
 
-import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
-import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ByteMap;
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
 
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 /**
  * Facade for Neo4j operations on properties, to allow caching.
@@ -29,54 +27,149 @@ import java.util.Map;
 enum Neo4jPropertyOperations {
     DEFAULT,
     CACHE {
-        private final Long2ObjectMap<Map<String, Object>> propertyCache = new Long2ObjectOpenHashMap<>();
+        /**
+         * Estimated memory used by an entry: the key and slot in the index (with its load factor), the key and
+         * frequency in the clock, the counters in the frequency sketch, and the state of a few properties.
+         */
+        private static final int BYTES_PER_ENTRY = 48;
 
-        {
-            propertyCache.defaultReturnValue(Collections.<String, Object>emptyMap());
-        }
+        private volatile PropertyStripe[] stripes = newStripes(Integer.getInteger(BUDGET_PROPERTY, 0));
 
         @Override
-        public synchronized Object getProperty(Node node, String property) {
-            Map<String, Object> properties = propertyCache.get(node.getId());
-            Object value = properties.get(property);
+        public Object getProperty(Node node, PropertyKey key, RequestMetrics metrics) {
+            Object value = getProperty(node, key, null, metrics);
             if (value == null) {
-                // Absent values won't be cached, Neo4j will always be called for those (and throw an exception). This
-                // could be handled.
-                value = node.getProperty(property);
-                cacheProperty(node, property, value, properties);
+                throw new NotFoundException("Property '" + key + "' not found on node " + node.getId());
             }
             return value;
         }
 
-        private void cacheProperty(Node node, String property, Object value, Map<String, Object> properties) {
-            Map<String, Object> newProperties;
-            if (properties.isEmpty()) {
-                // Optimize the memory usage when a single property is cached
-                newProperties = Collections.singletonMap(property, value);
-            } else {
-                if (properties.size() == 1) {
-                    newProperties = new HashMap<>(properties);
-                } else {
-                    newProperties = properties;
-                }
-                newProperties.put(property, value);
+        @Override
+        public Object getProperty(Node node, PropertyKey key, Object defaultValue, RequestMetrics metrics) {
+            long nodeId = node.getId();
+            PropertyStripe stripe = stripes[CacheStripe.stripe(nodeId)];
+            long generation = stripe.getGeneration();
+            Object value = stripe.get(nodeId, key.getId());
+            metrics.propertyCacheHit(value != PropertyStripe.UNKNOWN_VALUE);
+            if (value == PropertyStripe.UNKNOWN_VALUE) {
+                value = loadProperty(node, key, stripe, generation);
+            }
+            return value == null ? defaultValue : value;
+        }
+
+        @Override
+        public boolean getBooleanProperty(Node node, PropertyKey key, boolean defaultValue,
+                                          RequestMetrics metrics) {
+            long nodeId = node.getId();
+            PropertyStripe stripe = stripes[CacheStripe.stripe(nodeId)];
+            long generation = stripe.getGeneration();
+            byte state = stripe.getState(nodeId, key.getId());
+            metrics.propertyCacheHit(state != PropertyStripe.UNKNOWN);
+            switch (state) {
+                case PropertyStripe.TRUE:
+                    return true;
+                case PropertyStripe.FALSE:
+                    return false;
+                case PropertyStripe.ABSENT:
+                    return defaultValue;
+                case PropertyStripe.UNKNOWN:
+                    Object value = loadProperty(node, key, stripe, generation);
+                    return value == null ? defaultValue : (Boolean) value;
+                default:
+                    // The state alone tells the value isn't a boolean, as the uncached cast would
+                    throw new ClassCastException("Property '" + key + "' of node " + nodeId + " isn't a boolean");
+            }
+        }
+
+        private Object loadProperty(Node node, PropertyKey key, PropertyStripe stripe, long generation) {
+            // Neo4j doesn't store null values, so null means the property is absent, and it's cached as such
+            Object value = node.getProperty(key.getName(), null);
+            stripe.put(node.getId(), key.getId(), value, generation);
+            return value;
+        }
+
+        @Override
+        protected void clear() {
+            for (PropertyStripe stripe : stripes) {
+                stripe.clear();
             }
-            if (newProperties != properties) {
-                propertyCache.put(node.getId(), newProperties);
+        }
+
+        @Override
+        protected void invalidate(long nodeId) {
+            stripes[CacheStripe.stripe(nodeId)].invalidate(nodeId);
+        }
+
+        @Override
+        protected void setBudget(int budget) {
+            stripes = newStripes(budget);
+        }
+
+        @Override
+        protected CacheStats stats() {
+            return CacheStripe.stats("property", stripes);
+        }
+
+        @Override
+        protected void exportBoolean(PropertyKey key, Long2ByteMap states) {
+            for (PropertyStripe stripe : stripes) {
+                stripe.exportBoolean(key.getId(), states);
             }
         }
 
         @Override
-        protected synchronized void clear() {
-            propertyCache.clear();
+        protected void restoreBoolean(long nodeId, PropertyKey key, byte state) {
+            PropertyStripe stripe = stripes[CacheStripe.stripe(nodeId)];
+            stripe.put(nodeId, key.getId(), state == ABSENT ? null : state == TRUE, stripe.getGeneration());
+        }
+
+        private PropertyStripe[] newStripes(int budget) {
+            PropertyStripe[] newStripes = new PropertyStripe[CacheStripe.STRIPES];
+            for (int i = 0; i < newStripes.length; i++) {
+                newStripes[i] = new PropertyStripe(CacheStripe.capacity(budget, BYTES_PER_ENTRY));
+            }
+            return newStripes;
         }
 
         @Override
         public String toString() {
             return "CACHE";
         }
+    },
+    /**
+     * "value" property of the {@code B} nodes read from the {@link NodeFlagsCache}.
+     */
+    BITSET {
+        @Override
+        public boolean getBooleanProperty(Node node, PropertyKey key, boolean defaultValue,
+                                          RequestMetrics metrics) {
+            if (key == PropertyKey.VALUE) {
+                int flags = NodeFlagsCache.INSTANCE.get(node, metrics);
+                if ((flags & NodeFlagsCache.B) != 0) {
+                    return (flags & NodeFlagsCache.TRUE_VALUE) != 0;
+                }
+            }
+            return super.getBooleanProperty(node, key, defaultValue, metrics);
+        }
+
+        @Override
+        public String toString() {
+            return "BITSET";
+        }
     };
 
+    /**
+     * System property giving the initial memory budget of the cache, in MB (unbounded by default).
+     */
+    static final String BUDGET_PROPERTY = "traversal-perfs.cache.property.budget";
+
+    /**
+     * States of a cached boolean property.
+     */
+    static final byte ABSENT = PropertyStripe.ABSENT;
+    static final byte TRUE = PropertyStripe.TRUE;
+    static final byte FALSE = PropertyStripe.FALSE;
+
     public static Neo4jPropertyOperations get(boolean cache) {
         if (cache) {
             return CACHE;
@@ -88,10 +181,293 @@ enum Neo4jPropertyOperations {
         CACHE.clear();
     }
 
-    public Object getProperty(Node node, String property) {
-        return node.getProperty(property);
+    /**
+     * Remove a node from the cache, after its properties changed or it was deleted.
+     *
+     * @param nodeId The id of the node
+     */
+    public static void invalidateCache(long nodeId) {
+        CACHE.invalidate(nodeId);
+    }
+
+    /**
+     * Change the memory budget of the cache, emptying it.
+     *
+     * @param budget The memory budget in MB, or 0 for an unbounded cache
+     */
+    public static void setCacheBudget(int budget) {
+        CACHE.setBudget(budget);
+    }
+
+    public static CacheStats getCacheStats() {
+        return CACHE.stats();
+    }
+
+    /**
+     * Copy the cached values of a boolean property, to save them.
+     *
+     * @param key The key of the property
+     * @param states The map receiving the state of the property for each node: {@link #ABSENT}, {@link #TRUE} or
+     *               {@link #FALSE}
+     */
+    public static void exportBooleanCache(PropertyKey key, Long2ByteMap states) {
+        CACHE.exportBoolean(key, states);
+    }
+
+    /**
+     * Fill the cache with the value of a boolean property, previously exported and still valid.
+     *
+     * @param nodeId The id of the node
+     * @param key The key of the property
+     * @param state The state of the property: {@link #ABSENT}, {@link #TRUE} or {@link #FALSE}
+     */
+    public static void restoreBooleanCache(long nodeId, PropertyKey key, byte state) {
+        CACHE.restoreBoolean(nodeId, key, state);
+    }
+
+    /**
+     * @param metrics The metrics of the request, counting the cache hits and misses
+     */
+    public Object getProperty(Node node, PropertyKey key, RequestMetrics metrics) {
+        return node.getProperty(key.getName());
+    }
+
+    public Object getProperty(Node node, PropertyKey key, Object defaultValue, RequestMetrics metrics) {
+        return node.getProperty(key.getName(), defaultValue);
+    }
+
+    public boolean getBooleanProperty(Node node, PropertyKey key, boolean defaultValue, RequestMetrics metrics) {
+        return (Boolean) getProperty(node, key, defaultValue, metrics);
     }
 
     protected void clear() {
     }
+
+    protected void invalidate(long nodeId) {
+    }
+
+    protected void setBudget(int budget) {
+    }
+
+    /**
+     * @return The statistics of the cache, empty when nothing is cached
+     */
+    protected CacheStats stats() {
+        return new CacheStats("property", 0, 0, 0, 0, 0, 0);
+    }
+
+    protected void exportBoolean(PropertyKey key, Long2ByteMap states) {
+    }
+
+    protected void restoreBoolean(long nodeId, PropertyKey key, byte state) {
+    }
+
+    /**
+     * Stripe storing the properties in columns indexed by the id of the property key, each column holding the state of
+     * the property for each slot of the stripe: unknown (not cached yet), absent, {@code true}, {@code false}, or the
+     * type of the value stored in one of the columns for numbers (as raw bits) and other objects. These value columns
+     * are only allocated for the keys which need them, so boolean properties only cost a byte per node.
+     */
+    private static class PropertyStripe extends CacheStripe {
+        static final Object UNKNOWN_VALUE = new Object();
+
+        static final byte UNKNOWN = 0;
+        static final byte ABSENT = 1;
+        static final byte TRUE = 2;
+        static final byte FALSE = 3;
+        static final byte INT = 4;
+        static final byte LONG = 5;
+        static final byte DOUBLE = 6;
+        static final byte OBJECT = 7;
+
+        private byte[][] states = new byte[0][];
+        private long[][] numbers = new long[0][];
+        private Object[][] objects = new Object[0][];
+
+        public PropertyStripe(int capacity) {
+            super(capacity);
+        }
+
+        /**
+         * @return The state of the property, {@link #UNKNOWN} if it's not cached
+         */
+        public byte getState(long nodeId, int keyId) {
+            readLock.lock();
+            try {
+                return getState(index.find(nodeId), keyId);
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        private byte getState(int slot, int keyId) {
+            if (slot < 0 || keyId >= states.length) {
+                return UNKNOWN;
+            }
+            byte[] column = states[keyId];
+            return column == null || slot >= column.length ? UNKNOWN : column[slot];
+        }
+
+        /**
+         * @return The cached value of the property, {@code null} if it's absent, or {@link #UNKNOWN_VALUE} if it's not
+         * cached
+         */
+        public Object get(long nodeId, int keyId) {
+            readLock.lock();
+            try {
+                int slot = index.find(nodeId);
+                switch (getState(slot, keyId)) {
+                    case ABSENT:
+                        return null;
+                    case TRUE:
+                        return Boolean.TRUE;
+                    case FALSE:
+                        return Boolean.FALSE;
+                    case INT:
+                        return (int) numbers[keyId][slot];
+                    case LONG:
+                        return numbers[keyId][slot];
+                    case DOUBLE:
+                        return Double.longBitsToDouble(numbers[keyId][slot]);
+                    case OBJECT:
+                        return objects[keyId][slot];
+                    default:
+                        return UNKNOWN_VALUE;
+                }
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        /**
+         * @param value The value of the property, or {@code null} if it's absent
+         * @param generation The generation of the stripe before the value was read
+         */
+        public void put(long nodeId, int keyId, Object value, long generation) {
+            writeLock.lock();
+            try {
+                if (isStale(generation)) {
+                    return;
+                }
+                int slot = index.peek(nodeId);
+                if (slot < 0) {
+                    slot = index.allocate(nodeId);
+                    if (slot < 0) {
+                        // Not admitted in the full cache
+                        return;
+                    }
+                    resetSlot(slot);
+                }
+                byte state;
+                if (value == null) {
+                    state = ABSENT;
+                } else if (value instanceof Boolean) {
+                    state = (Boolean) value ? TRUE : FALSE;
+                } else if (value instanceof Integer) {
+                    state = INT;
+                    numberColumn(keyId)[slot] = (Integer) value;
+                } else if (value instanceof Long) {
+                    state = LONG;
+                    numberColumn(keyId)[slot] = (Long) value;
+                } else if (value instanceof Double) {
+                    state = DOUBLE;
+                    numberColumn(keyId)[slot] = Double.doubleToRawLongBits((Double) value);
+                } else {
+                    state = OBJECT;
+                    objectColumn(keyId)[slot] = value;
+                }
+                stateColumn(keyId)[slot] = state;
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        /**
+         * Copy the states of a boolean property, ignoring the nodes for which it's not cached or not a boolean.
+         */
+        public void exportBoolean(int keyId, Long2ByteMap nodeStates) {
+            readLock.lock();
+            try {
+                for (long nodeId : index.keys()) {
+                    byte state = getState(index.peek(nodeId), keyId);
+                    if (state == ABSENT || state == TRUE || state == FALSE) {
+                        nodeStates.put(nodeId, state);
+                    }
+                }
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        protected void releaseSlot(int slot) {
+            resetSlot(slot);
+        }
+
+        /**
+         * Forget the properties of the previous node in a recycled slot.
+         */
+        private void resetSlot(int slot) {
+            for (byte[] column : states) {
+                if (column != null && slot < column.length) {
+                    column[slot] = UNKNOWN;
+                }
+            }
+            for (Object[] column : objects) {
+                if (column != null && slot < column.length) {
+                    column[slot] = null;
+                }
+            }
+        }
+
+        private byte[] stateColumn(int keyId) {
+            if (keyId >= states.length) {
+                states = Arrays.copyOf(states, keyId + 1);
+            }
+            byte[] column = states[keyId];
+            if (column == null || column.length < index.length()) {
+                column = column == null ? new byte[index.length()] : Arrays.copyOf(column, index.length());
+                states[keyId] = column;
+            }
+            return column;
+        }
+
+        private long[] numberColumn(int keyId) {
+            if (keyId >= numbers.length) {
+                numbers = Arrays.copyOf(numbers, keyId + 1);
+            }
+            long[] column = numbers[keyId];
+            if (column == null || column.length < index.length()) {
+                column = column == null ? new long[index.length()] : Arrays.copyOf(column, index.length());
+                numbers[keyId] = column;
+            }
+            return column;
+        }
+
+        private Object[] objectColumn(int keyId) {
+            if (keyId >= objects.length) {
+                objects = Arrays.copyOf(objects, keyId + 1);
+            }
+            Object[] column = objects[keyId];
+            if (column == null || column.length < index.length()) {
+                column = column == null ? new Object[index.length()] : Arrays.copyOf(column, index.length());
+                objects[keyId] = column;
+            }
+            return column;
+        }
+
+        @Override
+        protected void clearValues() {
+            for (byte[] column : states) {
+                if (column != null) {
+                    Arrays.fill(column, UNKNOWN);
+                }
+            }
+            for (Object[] column : objects) {
+                if (column != null) {
+                    Arrays.fill(column, null);
+                }
+            }
+        }
+    }
 }
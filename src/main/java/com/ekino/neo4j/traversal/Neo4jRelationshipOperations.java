@@ -0,0 +1,279 @@
+/*
+ * Copyright 2016 Frank Pavageau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ekino.neo4j.traversal;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+
+import java.util.Arrays;
+
+/**
+ * Facade for Neo4j operations on the relationships of the tree, to allow caching its adjacency.
+ */
+enum Neo4jRelationshipOperations {
+    DEFAULT,
+    /**
+     * Children of each node cached as a sorted list of ids, delta-encoded in variable-length bytes: the first id
+     * relative to the parent (zig-zag encoded, as it can be lower), the others relative to the previous one. The
+     * children of a tree built in one go have close ids, so a child usually costs 1 or 2 bytes, and a leaf nothing.
+     */
+    CACHE {
+        /**
+         * Estimated memory used by an entry: the key and slot in the index (with its load factor), the key and
+         * frequency in the clock, the counters in the frequency sketch, and the array of encoded children.
+         */
+        private static final int BYTES_PER_ENTRY = 64;
+
+        private volatile AdjacencyStripe[] stripes = newStripes(Integer.getInteger(BUDGET_PROPERTY, 0));
+
+        @Override
+        public void getChildIds(Node node, RelationshipTypes type, LongArrayList childIds, RequestMetrics metrics) {
+            long nodeId = node.getId();
+            AdjacencyStripe stripe = stripes[CacheStripe.stripe(nodeId)];
+            long generation = stripe.getGeneration();
+            int size = childIds.size();
+            boolean hit = stripe.get(nodeId, type, childIds);
+            metrics.adjacencyCacheHit(hit);
+            if (!hit) {
+                super.getChildIds(node, type, childIds, metrics);
+                long[] children = Arrays.copyOfRange(childIds.elements(), size, childIds.size());
+                Arrays.sort(children);
+                stripe.put(nodeId, type, encode(nodeId, children), generation);
+            }
+        }
+
+        @Override
+        protected void clear() {
+            for (AdjacencyStripe stripe : stripes) {
+                stripe.clear();
+            }
+        }
+
+        @Override
+        protected void invalidate(long nodeId) {
+            stripes[CacheStripe.stripe(nodeId)].invalidate(nodeId);
+        }
+
+        @Override
+        protected void setBudget(int budget) {
+            stripes = newStripes(budget);
+        }
+
+        @Override
+        protected CacheStats stats() {
+            return CacheStripe.stats("adjacency", stripes);
+        }
+
+        private AdjacencyStripe[] newStripes(int budget) {
+            AdjacencyStripe[] newStripes = new AdjacencyStripe[CacheStripe.STRIPES];
+            for (int i = 0; i < newStripes.length; i++) {
+                newStripes[i] = new AdjacencyStripe(CacheStripe.capacity(budget, BYTES_PER_ENTRY));
+            }
+            return newStripes;
+        }
+
+        @Override
+        public String toString() {
+            return "CACHE";
+        }
+    };
+
+    /**
+     * System property giving the initial memory budget of the cache, in MB (unbounded by default).
+     */
+    static final String BUDGET_PROPERTY = "traversal-perfs.cache.adjacency.budget";
+
+    private static final byte[] NO_CHILDREN = new byte[0];
+
+    public static Neo4jRelationshipOperations get(boolean cache) {
+        if (cache) {
+            return CACHE;
+        }
+        return DEFAULT;
+    }
+
+    public static void clearCache() {
+        CACHE.clear();
+    }
+
+    /**
+     * Remove a node from the cache, after one of its relationships was created or deleted, or it was deleted.
+     *
+     * @param nodeId The id of the node
+     */
+    public static void invalidateCache(long nodeId) {
+        CACHE.invalidate(nodeId);
+    }
+
+    /**
+     * Change the memory budget of the cache, emptying it.
+     *
+     * @param budget The memory budget in MB, or 0 for an unbounded cache
+     */
+    public static void setCacheBudget(int budget) {
+        CACHE.setBudget(budget);
+    }
+
+    public static CacheStats getCacheStats() {
+        return CACHE.stats();
+    }
+
+    /**
+     * Get the ids of the children of a node, i.e. the end nodes of its outgoing relationships of a type.
+     *
+     * @param node The node
+     * @param type The type of the relationships
+     * @param childIds The list receiving the ids of the children, in no particular order
+     * @param metrics The metrics of the request, counting the cache hits and misses
+     */
+    public void getChildIds(Node node, RelationshipTypes type, LongArrayList childIds, RequestMetrics metrics) {
+        for (Relationship relationship : node.getRelationships(Direction.OUTGOING, type)) {
+            childIds.add(relationship.getEndNode().getId());
+        }
+    }
+
+    protected void clear() {
+    }
+
+    protected void invalidate(long nodeId) {
+    }
+
+    protected void setBudget(int budget) {
+    }
+
+    /**
+     * @return The statistics of the cache, empty when nothing is cached
+     */
+    protected CacheStats stats() {
+        return new CacheStats("adjacency", 0, 0, 0, 0, 0, 0);
+    }
+
+    private static byte[] encode(long parentId, long[] sortedChildIds) {
+        if (sortedChildIds.length == 0) {
+            return NO_CHILDREN;
+        }
+        byte[] bytes = new byte[10 * sortedChildIds.length];
+        long delta = sortedChildIds[0] - parentId;
+        int length = writeVarLong(bytes, 0, (delta << 1) ^ (delta >> 63));
+        for (int i = 1; i < sortedChildIds.length; i++) {
+            length = writeVarLong(bytes, length, sortedChildIds[i] - sortedChildIds[i - 1]);
+        }
+        return Arrays.copyOf(bytes, length);
+    }
+
+    private static void decode(long parentId, byte[] bytes, LongArrayList childIds) {
+        if (bytes.length == 0) {
+            return;
+        }
+        int position = 0;
+        long value = 0;
+        int shift = 0;
+        long previous = parentId;
+        boolean first = true;
+        while (position < bytes.length) {
+            byte b = bytes[position++];
+            value |= (long) (b & 0x7F) << shift;
+            if (b < 0) {
+                shift += 7;
+                continue;
+            }
+            if (first) {
+                previous += (value >>> 1) ^ -(value & 1);
+                first = false;
+            } else {
+                previous += value;
+            }
+            childIds.add(previous);
+            value = 0;
+            shift = 0;
+        }
+    }
+
+    private static int writeVarLong(byte[] bytes, int position, long value) {
+        while ((value & ~0x7FL) != 0) {
+            bytes[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[position++] = (byte) value;
+        return position;
+    }
+
+    private static class AdjacencyStripe extends CacheStripe {
+        private byte[][] children = new byte[index.length()][];
+        /**
+         * Ordinal of the {@link RelationshipTypes} of the cached children, a node only being expanded along one type.
+         */
+        private byte[] types = new byte[index.length()];
+
+        public AdjacencyStripe(int capacity) {
+            super(capacity);
+        }
+
+        /**
+         * @return {@code true} if the children of the node were cached and added to the list
+         */
+        public boolean get(long nodeId, RelationshipTypes type, LongArrayList childIds) {
+            readLock.lock();
+            try {
+                int slot = index.find(nodeId);
+                if (slot < 0 || types[slot] != type.ordinal()) {
+                    return false;
+                }
+                decode(nodeId, children[slot], childIds);
+                return true;
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        public void put(long nodeId, RelationshipTypes type, byte[] encoded, long generation) {
+            writeLock.lock();
+            try {
+                if (isStale(generation)) {
+                    return;
+                }
+                int slot = index.peek(nodeId);
+                if (slot < 0) {
+                    slot = index.allocate(nodeId);
+                    if (slot < 0) {
+                        // Not admitted in the full cache
+                        return;
+                    }
+                    if (slot >= children.length) {
+                        children = Arrays.copyOf(children, index.length());
+                        types = Arrays.copyOf(types, index.length());
+                    }
+                }
+                children[slot] = encoded;
+                types[slot] = (byte) type.ordinal();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        protected void releaseSlot(int slot) {
+            children[slot] = null;
+        }
+
+        @Override
+        protected void clearValues() {
+            Arrays.fill(children, null);
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2016 Frank Pavageau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ekino.neo4j.traversal;
+
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Dense cache of the labels of the tree and of the "value" property, indexed by node id: Neo4j allocates the node ids
+ * densely, so each node gets 4 bits in arrays of longs, without any hashing or boxing, and a lookup is a single memory
+ * access.
+ *
+ * The arrays are split into pages allocated on demand. The bits of a node are updated with a compare-and-swap of its
+ * word, so concurrent fills of neighbouring nodes don't lose each other's bits. Each invalidation increments a
+ * generation: a fill which raced with an invalidation is undone, as it may hold a value read before the commit.
+ *
+ * Its memory only depends on the highest node id, e.g. 512 KB per million nodes.
+ */
+final class NodeFlagsCache {
+    static final NodeFlagsCache INSTANCE = new NodeFlagsCache();
+
+    /**
+     * The flags of the node are known, the other bits can be trusted.
+     */
+    static final int KNOWN = 1;
+    static final int A = 1 << 1;
+    static final int B = 1 << 2;
+    /**
+     * The "value" property is {@code true}.
+     */
+    static final int TRUE_VALUE = 1 << 3;
+
+    private static final int BITS_PER_NODE = 4;
+    private static final int NODES_PER_WORD_SHIFT = 4;
+    private static final int PAGE_SHIFT = 20;
+    private static final int WORDS_PER_PAGE = 1 << (PAGE_SHIFT - NODES_PER_WORD_SHIFT);
+    private static final long NODE_MASK = (1L << BITS_PER_NODE) - 1;
+
+    private static final int STRIPES = 16;
+    private static final int STRIDE = 16;
+
+    private volatile AtomicLongArray[] pages = new AtomicLongArray[0];
+    private final AtomicLong generation = new AtomicLong();
+    /**
+     * Hits and misses, striped by thread like the {@link Metrics}.
+     */
+    private final AtomicLongArray counters = new AtomicLongArray(STRIPES * STRIDE);
+
+    private NodeFlagsCache() {
+    }
+
+    /**
+     * Get the flags of a node, reading them from Neo4j on a miss.
+     *
+     * @param node The node
+     * @param metrics The metrics of the request, counting the hit or the miss as a label cache hit or miss
+     * @return The flags, with {@link #KNOWN} set
+     */
+    public int get(Node node, RequestMetrics metrics) {
+        long nodeId = node.getId();
+        int flags = peek(nodeId);
+        boolean hit = flags != 0;
+        metrics.labelCacheHit(hit);
+        counters.incrementAndGet((int) (Thread.currentThread().getId() & (STRIPES - 1)) * STRIDE + (hit ? 0 : 1));
+        if (!hit) {
+            flags = load(node);
+        }
+        return flags;
+    }
+
+    /**
+     * @return The flags of a node, or 0 if they're not cached
+     */
+    private int peek(long nodeId) {
+        AtomicLongArray[] currentPages = pages;
+        int pageIndex = (int) (nodeId >>> PAGE_SHIFT);
+        if (pageIndex >= currentPages.length || currentPages[pageIndex] == null) {
+            return 0;
+        }
+        long word = currentPages[pageIndex].get(wordIndex(nodeId));
+        return (int) ((word >>> shift(nodeId)) & NODE_MASK);
+    }
+
+    private int load(Node node) {
+        long startGeneration = generation.get();
+        int flags = KNOWN;
+        for (Label label : node.getLabels()) {
+            if (Labels.A.name().equals(label.name())) {
+                flags |= A;
+            } else if (Labels.B.name().equals(label.name())) {
+                flags |= B;
+            }
+        }
+        // Only the value of the B nodes is used
+        if ((flags & B) != 0 && Boolean.TRUE.equals(node.getProperty(PropertyKey.VALUE.getName(), null))) {
+            flags |= TRUE_VALUE;
+        }
+
+        long nodeId = node.getId();
+        AtomicLongArray page = getOrCreatePage((int) (nodeId >>> PAGE_SHIFT));
+        set(page, nodeId, flags);
+        if (generation.get() != startGeneration) {
+            // The value may have been read before a commit whose invalidation has already run
+            reset(page, nodeId, flags);
+        }
+        return flags;
+    }
+
+    private static void set(AtomicLongArray page, long nodeId, int flags) {
+        int wordIndex = wordIndex(nodeId);
+        int shift = shift(nodeId);
+        long word;
+        do {
+            word = page.get(wordIndex);
+        } while (!page.compareAndSet(wordIndex, word, (word & ~(NODE_MASK << shift)) | ((long) flags << shift)));
+    }
+
+    /**
+     * Forget the flags of a node, if they're still the given ones.
+     */
+    private static void reset(AtomicLongArray page, long nodeId, int flags) {
+        int wordIndex = wordIndex(nodeId);
+        int shift = shift(nodeId);
+        long word;
+        do {
+            word = page.get(wordIndex);
+            if (((word >>> shift) & NODE_MASK) != flags) {
+                return;
+            }
+        } while (!page.compareAndSet(wordIndex, word, word & ~(NODE_MASK << shift)));
+    }
+
+    private synchronized AtomicLongArray getOrCreatePage(int pageIndex) {
+        AtomicLongArray[] currentPages = pages;
+        if (pageIndex >= currentPages.length) {
+            currentPages = Arrays.copyOf(currentPages, pageIndex + 1);
+        }
+        if (currentPages[pageIndex] == null) {
+            currentPages[pageIndex] = new AtomicLongArray(WORDS_PER_PAGE);
+            pages = currentPages;
+        }
+        return currentPages[pageIndex];
+    }
+
+    private static int wordIndex(long nodeId) {
+        return (int) ((nodeId & ((1 << PAGE_SHIFT) - 1)) >>> NODES_PER_WORD_SHIFT);
+    }
+
+    private static int shift(long nodeId) {
+        return (int) (nodeId & ((1 << NODES_PER_WORD_SHIFT) - 1)) * BITS_PER_NODE;
+    }
+
+    /**
+     * Forget the flags of a node, after its labels or properties changed or it was deleted.
+     */
+    public void invalidate(long nodeId) {
+        generation.incrementAndGet();
+        AtomicLongArray[] currentPages = pages;
+        int pageIndex = (int) (nodeId >>> PAGE_SHIFT);
+        if (pageIndex < currentPages.length && currentPages[pageIndex] != null) {
+            set(currentPages[pageIndex], nodeId, 0);
+        }
+    }
+
+    public synchronized void clear() {
+        generation.incrementAndGet();
+        pages = new AtomicLongArray[0];
+    }
+
+    public CacheStats stats() {
+        long hits = 0;
+        long misses = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            hits += counters.get(i * STRIDE);
+            misses += counters.get(i * STRIDE + 1);
+        }
+        int size = 0;
+        int capacity = 0;
+        for (AtomicLongArray page : pages) {
+            if (page != null) {
+                capacity += 1 << PAGE_SHIFT;
+                for (int i = 0; i < page.length(); i++) {
+                    // Count the nodes with their KNOWN bit set
+                    size += Long.bitCount(page.get(i) & 0x1111111111111111L);
+                }
+            }
+        }
+        return new CacheStats("bitset", hits, misses, 0, 0, size, capacity);
+    }
+}
@@ -32,11 +32,15 @@ import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.Iterator;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Resource to populate the database with a tree consisting of multiple levels of nodes connected like
@@ -45,7 +49,9 @@ import java.util.Random;
  * By default, it creates a tree with a depth of 5 and a fanout (number of children per parent) of 4, i.e. 1398101
  * nodes.
  *
- * The "depth" and "fanout" can be given as query parameters.
+ * The "depth" and "fanout" can be given as query parameters, and the "aggregates" query parameter also builds the
+ * {@link SubtreeAggregates} of the new tree. The "seed" query parameter makes the values reproducible (it's logged
+ * otherwise), and "writers" sets the number of threads creating the tree in parallel.
  */
 @Path("/populate")
 @Produces(MediaType.TEXT_PLAIN)
@@ -55,6 +61,14 @@ public class PopulateResource {
     private static final int DEFAULT_DEPTH = 5;
     private static final int DEFAULT_FANOUT = 4;
     private static final int CHUNK_SIZE = 10_000;
+    /**
+     * Number of leaf ids kept in memory before spilling them to disk, i.e. 8 MB.
+     */
+    private static final int SPILL_THRESHOLD = 1 << 20;
+    /**
+     * Number of chunks submitted to each writer in advance, to keep it busy while the next chunks are read.
+     */
+    private static final int PENDING_CHUNKS_PER_WRITER = 2;
 
     private final GraphDatabaseService graphDb;
 
@@ -64,14 +78,32 @@ public class PopulateResource {
 
     @GET
     public Response populate(@QueryParam("depth") Integer depthParameter,
-                             @QueryParam("fanout") Integer fanoutParameter) {
+                             @QueryParam("fanout") Integer fanoutParameter,
+                             @QueryParam("seed") Long seedParameter,
+                             @QueryParam("writers") Integer writersParameter,
+                             @QueryParam("aggregates") String aggregatesParameter) {
         int depth = getParameter(depthParameter, DEFAULT_DEPTH),
-                fanout = getParameter(fanoutParameter, DEFAULT_FANOUT);
+                fanout = getParameter(fanoutParameter, DEFAULT_FANOUT),
+                writers = getParameter(writersParameter, 1);
+        long seed = seedParameter != null ? seedParameter : new Random().nextLong();
 
-        int created = populate(depth, fanout);
+        int created = populate(depth, fanout, seed, writers);
+        if (created >= 0 && aggregatesParameter != null) {
+            new SubtreeAggregates(graphDb).build();
+        }
         return Response.ok(created + "\n").build();
     }
 
+    /**
+     * Build the {@link SubtreeAggregates} of an existing tree, which are then maintained on each write.
+     */
+    @GET
+    @Path("/aggregates")
+    public Response buildAggregates() {
+        int updated = new SubtreeAggregates(graphDb).build();
+        return Response.ok(updated + "\n").build();
+    }
+
     private static int getParameter(Integer parameter, int defaultValue) {
         if (parameter != null && parameter > 0) {
             defaultValue = parameter;
@@ -79,7 +111,31 @@ public class PopulateResource {
         return defaultValue;
     }
 
-    private int populate(int depth, int fanout) {
+    /**
+     * Populate the database with a new tree from a random seed in the current thread, also used by the benchmarks with
+     * an embedded database.
+     *
+     * @return The number of nodes in the database, or -1 if a tree already exists
+     */
+    int populate(int depth, int fanout) {
+        return populate(depth, fanout, new Random().nextLong(), 1);
+    }
+
+    /**
+     * Populate the database with a new tree, level by level: each level is split into chunks of leaves, and each chunk
+     * is extended in its own transaction by a pool of writers. The leaves are tracked by id in a {@link LeafFrontier}.
+     *
+     * Each chunk has its own random generator, seeded from the seed, the level and the index of the chunk, and the new
+     * leaves are collected in the order of the chunks: the same seed always creates the same tree, whatever the number
+     * of writers.
+     *
+     * @param depth The depth of the tree
+     * @param fanout The fanout of the tree
+     * @param seed The seed of the random generators
+     * @param writers The number of writer threads
+     * @return The number of nodes in the database, or -1 if a tree already exists
+     */
+    int populate(int depth, int fanout, long seed, int writers) {
         // Don't create a new tree if one already exists
         try (Transaction ignored = graphDb.beginTx();
              ResourceIterator<Node> roots = graphDb.findNodes(Labels.Root)) {
@@ -88,24 +144,61 @@ public class PopulateResource {
             }
         }
 
-        Random random = new Random();
-        Node root = createRoot(random);
-        Collection<Node> startNodes = Collections.singleton(root);
-        for (int i = 0; i < depth; i++) {
-            startNodes = createLevel(startNodes, fanout, random);
+        LOGGER.info("Populating a tree with a depth of {} and a fanout of {}, from seed {} with {} writers", depth,
+                fanout, seed, writers);
+        long start = System.currentTimeMillis();
+        ExecutorService executor = Executors.newFixedThreadPool(writers);
+        LeafFrontier leaves = new LeafFrontier(SPILL_THRESHOLD);
+        try {
+            leaves.add(new long[]{createRoot(new Random(seed))});
+            for (int level = 0; level < depth; level++) {
+                LeafFrontier newLeaves = createLevel(leaves, level, level < depth - 1, fanout, seed, executor,
+                        writers);
+                leaves.close();
+                leaves = newLeaves;
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to store the leaves", e);
+        } finally {
+            executor.shutdown();
+            try {
+                leaves.close();
+            } catch (IOException e) {
+                LOGGER.warn("Failed to delete the leaves", e);
+            }
         }
 
         try (Transaction ignored = graphDb.beginTx();
              Result result = graphDb.execute("MATCH (n) RETURN COUNT(n) AS count")) {
-            return ((Long) result.next().get("count")).intValue();
+            int count = ((Long) result.next().get("count")).intValue();
+            LOGGER.info("Populated {} nodes in {} ms", count, System.currentTimeMillis() - start);
+            return count;
         }
     }
 
-    private Node createRoot(Random random) {
+    /**
+     * Derive the seed of a chunk, mixing its coordinates like SplitMix64 so that neighbouring chunks get unrelated
+     * random sequences.
+     */
+    static long chunkSeed(long seed, int level, long chunk) {
+        long z = seed + 0x9E3779B97F4A7C15L * (((long) level << 40) + chunk + 1);
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * @return The number of leaves extended by each chunk, to create about {@link #CHUNK_SIZE} nodes per transaction
+     */
+    static int parentsPerChunk(int fanout) {
+        return Math.max(1, CHUNK_SIZE / (fanout + fanout * fanout));
+    }
+
+    private long createRoot(Random random) {
         try (Transaction tx = graphDb.beginTx()) {
             Node root = createNodeWithValue(random, Labels.Root, Labels.A);
             tx.success();
-            return root;
+            return root.getId();
         }
     }
 
@@ -114,49 +207,87 @@ public class PopulateResource {
      * the {@code HAS_B} relationship, and for each of these {@code B} nodes, connect {@code fanout} {@code A} nodes
      * using the {@code HAS_A} relationship.
      *
-     * @param startNodes The nodes to start the new level from, i.e. the current leaves of the tree
-     * @param fanout The fanout of the tree
-     * @param random The random generator
+     * The chunks are submitted to the writers with a bounded number of pending chunks, and their new leaves are
+     * collected in order.
+     *
+     * @param leaves The current leaves of the tree
+     * @param level The index of the new level
+     * @param keepLeaves Whether to collect the new leaves, which are useless for the last level
      * @return The new leaves
      */
-    private Collection<Node> createLevel(Collection<Node> startNodes, int fanout, Random random) {
-        LOGGER.info("Creating a new level");
-        Collection<Node> newStartNodes = new ArrayList<>();
-        Iterator<Node> startNodeIterator = startNodes.iterator();
-        while (startNodeIterator.hasNext()) {
-            try (Transaction tx = graphDb.beginTx()) {
-                newStartNodes.addAll(createLevelChunk(startNodeIterator, fanout, random));
-                tx.success();
+    private LeafFrontier createLevel(LeafFrontier leaves, int level, boolean keepLeaves, int fanout, long seed,
+                                     ExecutorService executor, int writers) throws IOException {
+        LOGGER.info("Creating level {} from {} leaves{}", level + 1, leaves.size(),
+                leaves.isSpilled() ? " spilled to disk" : "");
+        LeafFrontier newLeaves = new LeafFrontier(SPILL_THRESHOLD);
+        Deque<Future<long[]>> pendingChunks = new ArrayDeque<>();
+        try {
+            int parentsPerChunk = parentsPerChunk(fanout);
+            long chunk = 0;
+            long[] parents;
+            while ((parents = leaves.next(parentsPerChunk)).length > 0) {
+                Random random = new Random(chunkSeed(seed, level, chunk++));
+                pendingChunks.add(executor.submit(new LevelChunk(parents, fanout, random, keepLeaves)));
+                if (pendingChunks.size() >= PENDING_CHUNKS_PER_WRITER * writers) {
+                    newLeaves.add(pendingChunks.poll().get());
+                }
+            }
+            while (!pendingChunks.isEmpty()) {
+                newLeaves.add(pendingChunks.poll().get());
+            }
+            return newLeaves;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            newLeaves.close();
+            throw new IllegalStateException("Interrupted while populating the tree", e);
+        } catch (ExecutionException e) {
+            newLeaves.close();
+            throw new IllegalStateException("Failed to create a level chunk", e.getCause());
+        } finally {
+            for (Future<long[]> pendingChunk : pendingChunks) {
+                pendingChunk.cancel(false);
             }
         }
-        return newStartNodes;
     }
 
     /**
-     * Create a chunk of the new level, to limit the size of a single transaction.
-     *
-     * @param startNodeIterator An iterator on the nodes to start the new level from
-     * @param fanout The fanout of the tree
-     * @param random The random generator
-     * @return The leaves created in this chunk
+     * Chunk of a new level, created in its own transaction to limit its size.
      */
-    private Collection<Node> createLevelChunk(Iterator<Node> startNodeIterator, int fanout, Random random) {
-        LOGGER.info("Creating a new level chunk");
-        Collection<Node> newStartNodes = new ArrayList<>();
-        int createdNodes = 0;
-        while (createdNodes < CHUNK_SIZE && startNodeIterator.hasNext()) {
-            Node startNode = startNodeIterator.next();
-            for (int i = 0; i < fanout; i++) {
-                Node bNode = createChildNode(startNode, RelationshipTypes.HAS_B, Labels.B, random);
-                createdNodes++;
-
-                for (int j = 0; j < fanout; j++) {
-                    newStartNodes.add(createChildNode(bNode, RelationshipTypes.HAS_A, Labels.A, random));
-                    createdNodes++;
+    private class LevelChunk implements Callable<long[]> {
+        private final long[] parents;
+        private final int fanout;
+        private final Random random;
+        private final boolean keepLeaves;
+
+        public LevelChunk(long[] parents, int fanout, Random random, boolean keepLeaves) {
+            this.parents = parents;
+            this.fanout = fanout;
+            this.random = random;
+            this.keepLeaves = keepLeaves;
+        }
+
+        @Override
+        public long[] call() {
+            long[] newLeaves = new long[keepLeaves ? parents.length * fanout * fanout : 0];
+            int created = 0;
+            try (Transaction tx = graphDb.beginTx()) {
+                for (long parentId : parents) {
+                    Node startNode = graphDb.getNodeById(parentId);
+                    for (int i = 0; i < fanout; i++) {
+                        Node bNode = createChildNode(startNode, RelationshipTypes.HAS_B, Labels.B, random);
+
+                        for (int j = 0; j < fanout; j++) {
+                            Node aNode = createChildNode(bNode, RelationshipTypes.HAS_A, Labels.A, random);
+                            if (keepLeaves) {
+                                newLeaves[created++] = aNode.getId();
+                            }
+                        }
+                    }
                 }
+                tx.success();
             }
+            return newLeaves;
         }
-        return newStartNodes;
     }
 
     private Node createChildNode(Node parentNode, RelationshipType relationshipType, Label label, Random random) {
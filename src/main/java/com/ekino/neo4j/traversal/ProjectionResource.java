@@ -0,0 +1,68 @@
+/*
+ * Copyright 2016 Frank Pavageau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ekino.neo4j.traversal;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+/**
+ * Resource to manage the {@link GraphProjection} of the tree: "build" always builds a new one, while "refresh" only
+ * builds it if it's missing or stale. Each one describes the projection, with the time it took to build and its
+ * estimated memory size, to compare it with the label and property caches.
+ */
+@Path("/projection")
+@Produces(MediaType.TEXT_PLAIN)
+public class ProjectionResource {
+    private static final String HEADER = "nodes\tbytes\tbuildTime\ttransaction\tstale";
+
+    private final GraphDatabaseService graphDb;
+
+    public ProjectionResource(@Context GraphDatabaseService graphDb) {
+        this.graphDb = graphDb;
+    }
+
+    @GET
+    public Response describe() {
+        return describe(GraphProjection.get());
+    }
+
+    @GET
+    @Path("/build")
+    public Response build() {
+        return describe(GraphProjection.build(graphDb));
+    }
+
+    @GET
+    @Path("/refresh")
+    public Response refresh() {
+        return describe(GraphProjection.refresh(graphDb));
+    }
+
+    private Response describe(GraphProjection projection) {
+        if (projection == null) {
+            return Response.status(Response.Status.NOT_FOUND).entity("No projection\n").build();
+        }
+        return Response.ok(HEADER + "\n" + projection.size() + "\t" + projection.getMemorySize() + "\t" +
+                projection.getBuildTime() + "\t" + projection.getTransactionId() + "\t" +
+                projection.isStale(graphDb) + "\n").build();
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2016 Frank Pavageau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ekino.neo4j.traversal;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Property key interned into a small integer id, used by the property cache to index its columns without hashing the
+ * name of the property on every access.
+ */
+final class PropertyKey {
+    private static final ConcurrentMap<String, PropertyKey> byNameMap = new ConcurrentHashMap<>();
+    private static int nextId;
+
+    /**
+     * The boolean property of the {@code A} and {@code B} nodes.
+     */
+    static final PropertyKey VALUE = of("value");
+
+    private final String name;
+    private final int id;
+
+    private PropertyKey(String name, int id) {
+        this.name = name;
+        this.id = id;
+    }
+
+    public static PropertyKey of(String name) {
+        PropertyKey key = byNameMap.get(name);
+        if (key == null) {
+            // Lock to allocate the ids sequentially, keeping the columns of the cache dense
+            synchronized (byNameMap) {
+                key = byNameMap.get(name);
+                if (key == null) {
+                    key = new PropertyKey(name, nextId++);
+                    byNameMap.put(name, key);
+                }
+            }
+        }
+        return key;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2016 Frank Pavageau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ekino.neo4j.traversal;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Metrics of a single request, or of a single worker of a parallel request, only updated by its own thread: the
+ * counters are plain fields, as cheap as possible in the hot path, and are added to the {@link Metrics} once the
+ * request is over.
+ *
+ * They can be disabled with the "traversal-perfs.metrics" system property set to {@code false}, to measure their
+ * overhead: the JIT then removes the increments, as the flag is a constant.
+ */
+final class RequestMetrics {
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("traversal-perfs.metrics", "true"));
+
+    private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+
+    long nodes;
+    long relationships;
+    long hasLabelCalls;
+    long getPropertyCalls;
+    long labelHits;
+    long labelMisses;
+    long propertyHits;
+    long propertyMisses;
+    long resultHits;
+    long resultCoalesced;
+    long resultMisses;
+    long adjacencyHits;
+    long adjacencyMisses;
+    long rejected;
+    long timedOut;
+    long cancelled;
+    long wallTime;
+    long allocatedBytes;
+
+    private long startTime;
+    private long startAllocatedBytes;
+
+    public void start() {
+        if (ENABLED) {
+            startTime = System.nanoTime();
+            startAllocatedBytes = getAllocatedBytes();
+        }
+    }
+
+    public void stop() {
+        if (ENABLED) {
+            wallTime += System.nanoTime() - startTime;
+            long allocated = getAllocatedBytes();
+            if (allocated >= 0 && startAllocatedBytes >= 0) {
+                allocatedBytes += allocated - startAllocatedBytes;
+            }
+        }
+    }
+
+    /**
+     * @return The bytes allocated by the current thread so far, or -1 if the JVM can't tell
+     */
+    private static long getAllocatedBytes() {
+        if (THREAD_MX_BEAN instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) THREAD_MX_BEAN)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    public void visitNode() {
+        if (ENABLED) {
+            nodes++;
+        }
+    }
+
+    public void expandRelationship() {
+        if (ENABLED) {
+            relationships++;
+        }
+    }
+
+    public void hasLabel() {
+        if (ENABLED) {
+            hasLabelCalls++;
+        }
+    }
+
+    public void getProperty() {
+        if (ENABLED) {
+            getPropertyCalls++;
+        }
+    }
+
+    public void labelCacheHit(boolean hit) {
+        if (ENABLED) {
+            if (hit) {
+                labelHits++;
+            } else {
+                labelMisses++;
+            }
+        }
+    }
+
+    public void propertyCacheHit(boolean hit) {
+        if (ENABLED) {
+            if (hit) {
+                propertyHits++;
+            } else {
+                propertyMisses++;
+            }
+        }
+    }
+
+    public void adjacencyCacheHit(boolean hit) {
+        if (ENABLED) {
+            if (hit) {
+                adjacencyHits++;
+            } else {
+                adjacencyMisses++;
+            }
+        }
+    }
+
+    /**
+     * Record a request rejected by the admission control.
+     */
+    public void reject() {
+        if (ENABLED) {
+            rejected++;
+        }
+    }
+
+    /**
+     * Record a traversal stopped by its deadline.
+     *
+     * @param timedOut {@code true} if the deadline passed, {@code false} if the traversal was cancelled
+     */
+    public void cancel(boolean timedOut) {
+        if (ENABLED) {
+            if (timedOut) {
+                this.timedOut++;
+            } else {
+                cancelled++;
+            }
+        }
+    }
+
+    public void resultCacheLookup(ResultCache.Lookup lookup) {
+        if (ENABLED) {
+            switch (lookup) {
+                case HIT:
+                    resultHits++;
+                    break;
+                case COALESCED:
+                    resultCoalesced++;
+                    break;
+                default:
+                    resultMisses++;
+            }
+        }
+    }
+
+    /**
+     * Add the metrics of a worker of the same request, except its wall time which overlaps the time of the request.
+     *
+     * @param worker The metrics of the worker, once it's done
+     */
+    public void addWorker(RequestMetrics worker) {
+        nodes += worker.nodes;
+        relationships += worker.relationships;
+        hasLabelCalls += worker.hasLabelCalls;
+        getPropertyCalls += worker.getPropertyCalls;
+        labelHits += worker.labelHits;
+        labelMisses += worker.labelMisses;
+        propertyHits += worker.propertyHits;
+        propertyMisses += worker.propertyMisses;
+        adjacencyHits += worker.adjacencyHits;
+        adjacencyMisses += worker.adjacencyMisses;
+        allocatedBytes += worker.allocatedBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "RequestMetrics(nodes=" + nodes + ", relationships=" + relationships + ", hasLabel=" + hasLabelCalls +
+                ", getProperty=" + getPropertyCalls + ", label=" + labelHits + "/" + labelMisses + ", property=" +
+                propertyHits + "/" + propertyMisses + ", adjacency=" + adjacencyHits + "/" + adjacencyMisses +
+                ", result=" + resultHits + "/" + resultCoalesced + "/" +
+                resultMisses + ", wallTime=" + wallTime / 1_000_000 + " ms, allocated=" +
+                allocatedBytes + " bytes)";
+    }
+}
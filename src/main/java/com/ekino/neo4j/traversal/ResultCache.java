@@ -0,0 +1,170 @@
+/*
+ * Copyright 2016 Frank Pavageau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ekino.neo4j.traversal;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Cache of the results of the traversals, between requests, keyed by the start node and the options of the traversal.
+ *
+ * Concurrent identical requests share the same computation: the first one runs it in its own thread, and the others
+ * wait for its result (until their own deadline) instead of traversing the tree again. A failed computation isn't
+ * cached.
+ *
+ * The whole cache is invalidated by the {@link ResultCacheInvalidationHandler} after each write to the tree: a
+ * computation running at that time is forgotten, so no result computed before the write is returned afterwards.
+ */
+final class ResultCache {
+    static final ResultCache INSTANCE = new ResultCache();
+
+    /**
+     * Name of the cache in the "cache" query parameter.
+     */
+    static final String NAME = "result";
+
+    /**
+     * Maximum number of results, beyond which the new results are computed without being cached.
+     */
+    private static final int MAX_ENTRIES = 4096;
+
+    /**
+     * Outcome of a lookup.
+     */
+    enum Lookup {
+        /**
+         * The result was already computed.
+         */
+        HIT,
+        /**
+         * The result was being computed by another request, and has been shared.
+         */
+        COALESCED,
+        /**
+         * The result has been computed by the request.
+         */
+        MISS
+    }
+
+    private final ConcurrentMap<String, FutureTask<Integer>> results = new ConcurrentHashMap<>();
+
+    private ResultCache() {
+    }
+
+    /**
+     * @param cache The "cache" query parameter
+     * @return Whether the result cache is enabled by the query parameter
+     */
+    public static boolean isEnabled(String cache) {
+        return cache != null && Arrays.asList(cache.split(",")).contains(NAME);
+    }
+
+    /**
+     * Build the key of a traversal. The caches enabled with the result cache are part of it, as comparing them is the
+     * point of the traversals.
+     *
+     * @param start The id of the start node, or {@code null} for the root
+     * @param maxDepth The maximum depth, or {@link TrueBNodesCounter#UNBOUNDED}
+     * @param value The value of the matching nodes
+     * @param cache The "cache" query parameter
+     */
+    public static String key(Long start, TraversalEngine engine, boolean depthFirst, int parallelism, int maxDepth,
+                             boolean value, String cache) {
+        String[] caches = cache.split(",");
+        Arrays.sort(caches);
+        return (start != null ? start : "root") + "/" + engine + "/" + (depthFirst ? "depthFirst" : "breadthFirst") +
+                "/" + parallelism + "/" + (maxDepth == TrueBNodesCounter.UNBOUNDED ? "unbounded" : maxDepth) + "/" +
+                value + "/" + Arrays.toString(caches);
+    }
+
+    /**
+     * Get a result, computing it in the current thread if it's neither cached nor being computed by another request.
+     *
+     * A request sharing the computation of another one only waits for it until its own deadline. If that computation
+     * is cancelled (its request timed out or went away), the request doesn't inherit the cancellation: it looks the
+     * result up again, computing it itself if nobody else has started.
+     *
+     * @param key The key of the traversal
+     * @param computation The traversal, if the result needs to be computed
+     * @param deadline The deadline of the request
+     * @param metrics The metrics of the request, recording the outcome of each lookup
+     * @return The result
+     * @throws TraversalCancelledException If the deadline passed while waiting for the result of another request
+     */
+    public int get(String key, Callable<Integer> computation, Deadline deadline, RequestMetrics metrics) {
+        while (true) {
+            FutureTask<Integer> task = results.get(key);
+            if (task == null) {
+                FutureTask<Integer> newTask = new FutureTask<>(computation);
+                task = results.size() < MAX_ENTRIES ? results.putIfAbsent(key, newTask) : null;
+                if (task == null) {
+                    metrics.resultCacheLookup(Lookup.MISS);
+                    newTask.run();
+                    return get(key, newTask, Deadline.NONE, false);
+                }
+            }
+            metrics.resultCacheLookup(task.isDone() ? Lookup.HIT : Lookup.COALESCED);
+            Integer result = get(key, task, deadline, true);
+            if (result != null) {
+                return result;
+            }
+        }
+    }
+
+    /**
+     * @param shared Whether the task was started by another request
+     * @return The result, or {@code null} if the task was started by another request and was cancelled
+     */
+    private Integer get(String key, FutureTask<Integer> task, Deadline deadline, boolean shared) {
+        try {
+            return deadline.isBounded()
+                    ? task.get(Math.max(0, deadline.remainingNanos()), TimeUnit.NANOSECONDS)
+                    : task.get();
+        } catch (TimeoutException e) {
+            throw new TraversalCancelledException(true);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TraversalCancelledException(false);
+        } catch (ExecutionException e) {
+            results.remove(key, task);
+            Throwable cause = e.getCause();
+            if (shared && cause instanceof TraversalCancelledException) {
+                return null;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException("Failed to compute the result", cause);
+        }
+    }
+
+    public int size() {
+        return results.size();
+    }
+
+    public void invalidate() {
+        results.clear();
+    }
+}
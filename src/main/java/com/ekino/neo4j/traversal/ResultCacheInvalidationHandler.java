@@ -0,0 +1,95 @@
+/*
+ * Copyright 2016 Frank Pavageau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ekino.neo4j.traversal;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.event.LabelEntry;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+/**
+ * Transaction event handler invalidating the {@link ResultCache} after each commit writing to the tree: the labels of
+ * the changed nodes can only be read before the commit, where the handler decides whether the tree changed, but the
+ * cache is only invalidated once the write is visible to the new traversals.
+ *
+ * A write changes the tree when it creates or deletes a {@code HAS_A} or {@code HAS_B} relationship, assigns or removes
+ * a label of the tree, changes a property of an {@code A} or {@code B} node, or deletes a node.
+ */
+class ResultCacheInvalidationHandler extends TransactionEventHandler.Adapter<Boolean> {
+    @Override
+    public Boolean beforeCommit(TransactionData data) throws Exception {
+        return changesTree(data);
+    }
+
+    @Override
+    public void afterCommit(TransactionData data, Boolean changesTree) {
+        if (changesTree) {
+            ResultCache.INSTANCE.invalidate();
+        }
+    }
+
+    private static boolean changesTree(TransactionData data) {
+        for (Relationship relationship : data.createdRelationships()) {
+            if (isChildRelationship(relationship)) {
+                return true;
+            }
+        }
+        for (Relationship relationship : data.deletedRelationships()) {
+            if (isChildRelationship(relationship)) {
+                return true;
+            }
+        }
+        // The labels of the deleted nodes can't be read anymore
+        if (data.deletedNodes().iterator().hasNext()) {
+            return true;
+        }
+        for (LabelEntry entry : data.assignedLabels()) {
+            if (isTreeLabel(entry)) {
+                return true;
+            }
+        }
+        for (LabelEntry entry : data.removedLabels()) {
+            if (isTreeLabel(entry)) {
+                return true;
+            }
+        }
+        for (PropertyEntry<Node> entry : data.assignedNodeProperties()) {
+            if (isTreeNode(entry.entity())) {
+                return true;
+            }
+        }
+        for (PropertyEntry<Node> entry : data.removedNodeProperties()) {
+            if (isTreeNode(entry.entity())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isChildRelationship(Relationship relationship) {
+        return relationship.isType(RelationshipTypes.HAS_A) || relationship.isType(RelationshipTypes.HAS_B);
+    }
+
+    private static boolean isTreeLabel(LabelEntry entry) {
+        return Labels.getByName(entry.label().name()) != null;
+    }
+
+    private static boolean isTreeNode(Node node) {
+        return node.hasLabel(Labels.A) || node.hasLabel(Labels.B);
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2016 Frank Pavageau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ekino.neo4j.traversal;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+
+/**
+ * Materialized aggregates of the tree: each {@code A} node holds the number of {@code B} nodes which "value" property
+ * is {@code true} in its subtree, in its "trueBCount" property. The aggregates are built in bulk, then maintained
+ * incrementally by the {@link AggregateMaintenanceHandler}.
+ *
+ * The subtrees follow the same rule as the traversals: {@code HAS_B} relationships are only expanded from {@code A}
+ * nodes, {@code HAS_A} relationships from {@code B} nodes, and a node without either label is a leaf.
+ */
+class SubtreeAggregates {
+    static final String COUNT_PROPERTY = "trueBCount";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SubtreeAggregates.class);
+    private static final int CHUNK_SIZE = 10_000;
+
+    private final GraphDatabaseService graphDb;
+
+    public SubtreeAggregates(GraphDatabaseService graphDb) {
+        this.graphDb = graphDb;
+    }
+
+    /**
+     * Compute the aggregates of the whole tree, then store them by chunks to limit the size of the transactions.
+     *
+     * @return The number of {@code A} nodes updated, or -1 if there's no tree
+     */
+    public int build() {
+        LongArrayList aNodeIds = new LongArrayList();
+        IntArrayList aNodeCounts = new IntArrayList();
+        try (Transaction ignored = graphDb.beginTx();
+             ResourceIterator<Node> roots = graphDb.findNodes(Labels.Root)) {
+            if (!roots.hasNext()) {
+                return -1;
+            }
+            computeAll(roots.next(), aNodeIds, aNodeCounts);
+        }
+
+        LOGGER.info("Storing the aggregates of {} nodes", aNodeIds.size());
+        for (int start = 0; start < aNodeIds.size(); start += CHUNK_SIZE) {
+            try (Transaction tx = graphDb.beginTx()) {
+                for (int i = start; i < Math.min(start + CHUNK_SIZE, aNodeIds.size()); i++) {
+                    graphDb.getNodeById(aNodeIds.getLong(i)).setProperty(COUNT_PROPERTY, aNodeCounts.getInt(i));
+                }
+                tx.success();
+            }
+        }
+        return aNodeIds.size();
+    }
+
+    /**
+     * Collect the nodes breadth-first with the index of their parent, then accumulate the counts in reverse order, so
+     * that each subtree is complete before being added to its parent.
+     */
+    private void computeAll(Node root, LongArrayList aNodeIds, IntArrayList aNodeCounts) {
+        LOGGER.info("Computing the aggregates of the whole tree");
+        LongArrayList nodeIds = new LongArrayList();
+        IntArrayList parents = new IntArrayList();
+        IntArrayList counts = new IntArrayList();
+        nodeIds.add(root.getId());
+        parents.add(-1);
+        counts.add(0);
+        for (int i = 0; i < nodeIds.size(); i++) {
+            Node node = graphDb.getNodeById(nodeIds.getLong(i));
+            if (matches(node)) {
+                counts.set(i, 1);
+            }
+            for (Relationship relationship : getChildRelationships(node)) {
+                nodeIds.add(relationship.getEndNode().getId());
+                parents.add(i);
+                counts.add(0);
+            }
+        }
+
+        for (int i = nodeIds.size() - 1; i > 0; i--) {
+            int parent = parents.getInt(i);
+            counts.set(parent, counts.getInt(parent) + counts.getInt(i));
+        }
+        for (int i = 0; i < nodeIds.size(); i++) {
+            long nodeId = nodeIds.getLong(i);
+            if (graphDb.getNodeById(nodeId).hasLabel(Labels.A)) {
+                aNodeIds.add(nodeId);
+                aNodeCounts.add(counts.getInt(i));
+            }
+        }
+    }
+
+    /**
+     * @return Whether the aggregates have been built, i.e. the root holds its aggregate
+     */
+    public boolean isBuilt() {
+        try (ResourceIterator<Node> roots = graphDb.findNodes(Labels.Root)) {
+            return roots.hasNext() && roots.next().hasProperty(COUNT_PROPERTY);
+        }
+    }
+
+    /**
+     * Get the number of matching nodes in the subtree of a node, reading a single aggregate for an {@code A} node, or
+     * the aggregates of its children for a {@code B} node.
+     *
+     * @param node The root of the subtree
+     * @return The number of matching nodes
+     */
+    public int count(Node node) {
+        if (node.hasLabel(Labels.A)) {
+            Object count = node.getProperty(COUNT_PROPERTY, null);
+            if (count == null) {
+                throw new IllegalStateException("The aggregates haven't been built");
+            }
+            return (Integer) count;
+        }
+        int count = matches(node) ? 1 : 0;
+        for (Relationship relationship : getChildRelationships(node)) {
+            count += count(relationship.getEndNode());
+        }
+        return count;
+    }
+
+    /**
+     * Recompute the aggregate of an {@code A} node from its children, reusing the aggregates of the {@code A} nodes
+     * below them, which must be up-to-date.
+     *
+     * @param node The {@code A} node
+     */
+    public void recompute(Node node) {
+        int count = matches(node) ? 1 : 0;
+        for (Relationship hasB : node.getRelationships(Direction.OUTGOING, RelationshipTypes.HAS_B)) {
+            count += aggregateOrCompute(hasB.getEndNode());
+        }
+        Object previous = node.getProperty(COUNT_PROPERTY, null);
+        if (previous == null || (Integer) previous != count) {
+            node.setProperty(COUNT_PROPERTY, count);
+        }
+    }
+
+    private int aggregateOrCompute(Node node) {
+        if (!node.hasLabel(Labels.A)) {
+            int count = matches(node) ? 1 : 0;
+            for (Relationship relationship : getChildRelationships(node)) {
+                count += aggregateOrCompute(relationship.getEndNode());
+            }
+            return count;
+        }
+        Object count = node.getProperty(COUNT_PROPERTY, null);
+        if (count != null) {
+            return (Integer) count;
+        }
+        // Should only happen if the aggregates haven't been built completely
+        recompute(node);
+        return (Integer) node.getProperty(COUNT_PROPERTY);
+    }
+
+    /**
+     * @return The parent of a node in the tree, or {@code null} for the root
+     */
+    static Node getParent(Node node) {
+        for (Relationship relationship : node.getRelationships(Direction.INCOMING, RelationshipTypes.HAS_A,
+                RelationshipTypes.HAS_B)) {
+            return relationship.getStartNode();
+        }
+        return null;
+    }
+
+    private static Iterable<Relationship> getChildRelationships(Node node) {
+        if (node.hasLabel(Labels.A)) {
+            return node.getRelationships(Direction.OUTGOING, RelationshipTypes.HAS_B);
+        } else if (node.hasLabel(Labels.B)) {
+            return node.getRelationships(Direction.OUTGOING, RelationshipTypes.HAS_A);
+        }
+        return Collections.emptyList();
+    }
+
+    private static boolean matches(Node node) {
+        return node.hasLabel(Labels.B) && (Boolean) node.getProperty(PropertyKey.VALUE.getName(), false);
+    }
+}
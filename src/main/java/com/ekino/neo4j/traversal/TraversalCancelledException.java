@@ -0,0 +1,37 @@
+/*
+ * Copyright 2016 Frank Pavageau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ekino.neo4j.traversal;
+
+/**
+ * Exception thrown by a traversal which has been stopped by its {@link Deadline}.
+ */
+class TraversalCancelledException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final boolean timedOut;
+
+    public TraversalCancelledException(boolean timedOut) {
+        super(timedOut ? "The traversal timed out" : "The traversal was cancelled");
+        this.timedOut = timedOut;
+    }
+
+    /**
+     * @return {@code true} if the deadline passed, {@code false} if the traversal was cancelled
+     */
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2016 Frank Pavageau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ekino.neo4j.traversal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The engines available to traverse the tree.
+ */
+enum TraversalEngine {
+    /**
+     * The Neo4j traversal framework, using a {@code TraversalDescription}.
+     */
+    FRAMEWORK("framework"),
+    /**
+     * A loop over a primitive stack or queue of node ids, without any {@code Path}.
+     */
+    NODE_IDS("ids"),
+    /**
+     * A recursive walk over the core API, the call stack holding the path, always depth-first.
+     */
+    CORE("core"),
+    /**
+     * An equivalent Cypher query, with a variable-length pattern.
+     */
+    CYPHER("cypher"),
+    /**
+     * No traversal, the {@code B} nodes are scanned by label and their value checked in batches.
+     */
+    LABEL_SCAN("scan"),
+    /**
+     * No traversal, the materialized {@link SubtreeAggregates} are read instead.
+     */
+    AGGREGATE("aggregate"),
+    /**
+     * A loop over the arrays of the {@link GraphProjection}, without the Neo4j API.
+     */
+    PROJECTION("projection");
+
+    private final String parameter;
+
+    TraversalEngine(String parameter) {
+        this.parameter = parameter;
+    }
+
+    public static TraversalEngine get(String engine) {
+        if (engine == null || engine.isEmpty()) {
+            return FRAMEWORK;
+        }
+        for (TraversalEngine traversalEngine : values()) {
+            if (traversalEngine.parameter.equals(engine)) {
+                return traversalEngine;
+            }
+        }
+        throw new IllegalArgumentException("Unknown traversal engine: " + engine);
+    }
+
+    /**
+     * @param engines The comma-separated names of the engines
+     * @return The engines, in the same order
+     */
+    public static List<TraversalEngine> getAll(String engines) {
+        List<TraversalEngine> traversalEngines = new ArrayList<>();
+        for (String engine : engines.split(",")) {
+            traversalEngines.add(get(engine.trim()));
+        }
+        return traversalEngines;
+    }
+
+    @Override
+    public String toString() {
+        return parameter;
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2016 Frank Pavageau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ekino.neo4j.traversal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Admission control of the traversals: they run on a fixed number of threads, with a bounded queue in front of them,
+ * and are rejected right away once the queue is full. Under overload, the admitted traversals keep their latency
+ * instead of all slowing down together, each of them holding a transaction and generating garbage.
+ *
+ * The streamed traversals run in the thread writing the response instead, so they're only admitted: up to the same
+ * concurrency, without any queue.
+ *
+ * The workers of the parallel traversals share another fixed pool, which also bounds the parallelism of a request, so
+ * the admitted traversals can't start more threads than that between them.
+ *
+ * The concurrency defaults to the number of processors, and the queue to the same size. They're set with the
+ * "traversal-perfs.traversal.concurrency" and "traversal-perfs.traversal.queue" system properties. The number of
+ * workers also defaults to the number of processors, and is set with the "traversal-perfs.traversal.workers" one.
+ */
+final class TraversalExecutor {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TraversalExecutor.class);
+
+    static final String CONCURRENCY_PROPERTY = "traversal-perfs.traversal.concurrency";
+    static final String QUEUE_PROPERTY = "traversal-perfs.traversal.queue";
+    static final String WORKERS_PROPERTY = "traversal-perfs.traversal.workers";
+    /**
+     * System property giving the default timeout of the traversals in milliseconds, 0 for none.
+     */
+    static final String TIMEOUT_PROPERTY = "traversal-perfs.traversal.timeout";
+
+    static final TraversalExecutor INSTANCE = new TraversalExecutor(
+            Integer.getInteger(CONCURRENCY_PROPERTY, Runtime.getRuntime().availableProcessors()),
+            Integer.getInteger(QUEUE_PROPERTY, Runtime.getRuntime().availableProcessors()),
+            Integer.getInteger(WORKERS_PROPERTY, Runtime.getRuntime().availableProcessors()));
+
+    private final ThreadPoolExecutor executor;
+    private final Semaphore streams;
+    private final ThreadPoolExecutor workers;
+
+    private TraversalExecutor(int concurrency, int queueSize, int workerCount) {
+        BlockingQueue<Runnable> queue = queueSize > 0
+                ? new ArrayBlockingQueue<Runnable>(queueSize)
+                : new SynchronousQueue<Runnable>();
+        executor = new ThreadPoolExecutor(concurrency, concurrency, 0, TimeUnit.MILLISECONDS, queue,
+                new TraversalThreadFactory("traversal-perfs-traversal-"));
+        streams = new Semaphore(concurrency);
+        // The workers only come from admitted traversals, their queue is bounded by the admission
+        workers = new ThreadPoolExecutor(workerCount, workerCount, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new TraversalThreadFactory("traversal-perfs-worker-"));
+        LOGGER.info("Running the traversals on {} threads, with {} queued at most, and their workers on {} threads",
+                concurrency, queueSize, workerCount);
+    }
+
+    /**
+     * @param timeout The "timeout" query parameter, or {@code null} for the default timeout
+     * @return The deadline of a traversal starting now
+     */
+    public static Deadline deadline(Long timeout) {
+        return Deadline.after(timeout != null ? timeout : Long.getLong(TIMEOUT_PROPERTY, 0));
+    }
+
+    /**
+     * Run a traversal, waiting for its result until its deadline. The traversal is cancelled if the deadline passes
+     * or the current thread is interrupted while waiting.
+     *
+     * @param traversal The traversal, opening its own transaction as it runs in another thread
+     * @param deadline The deadline of the traversal
+     * @return The result
+     * @throws RejectedExecutionException If there are too many traversals already
+     * @throws TraversalCancelledException If the traversal was cancelled, or its deadline passed
+     */
+    public <T> T execute(Callable<T> traversal, Deadline deadline) {
+        Future<T> future = executor.submit(traversal);
+        try {
+            return deadline.isBounded()
+                    ? future.get(Math.max(0, deadline.remainingNanos()), TimeUnit.NANOSECONDS)
+                    : future.get();
+        } catch (TimeoutException e) {
+            cancel(future, deadline);
+            throw new TraversalCancelledException(true);
+        } catch (InterruptedException e) {
+            cancel(future, deadline);
+            Thread.currentThread().interrupt();
+            throw new TraversalCancelledException(false);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException("Failed to traverse the tree", cause);
+        }
+    }
+
+    /**
+     * Admit a streamed traversal, which must call {@link #releaseStream()} once done.
+     *
+     * @return {@code false} if there are too many streamed traversals already
+     */
+    public boolean admitStream() {
+        return streams.tryAcquire();
+    }
+
+    public void releaseStream() {
+        streams.release();
+    }
+
+    /**
+     * Run the workers of a parallel traversal on the shared pool, and wait for all of them.
+     *
+     * @param tasks The workers, opening their own transactions
+     * @return The results of the workers, all done
+     * @throws InterruptedException If the current thread was interrupted while waiting, the unfinished workers being
+     *                              cancelled
+     */
+    public <T> List<Future<T>> invokeWorkers(List<? extends Callable<T>> tasks) throws InterruptedException {
+        return workers.invokeAll(tasks);
+    }
+
+    /**
+     * @return The maximum number of workers of a parallel traversal, the size of their pool
+     */
+    public int getMaxParallelism() {
+        return workers.getMaximumPoolSize();
+    }
+
+    private static void cancel(Future<?> future, Deadline deadline) {
+        // Stops a queued traversal, and interrupts a running one, its workers noticing the cancelled deadline
+        deadline.cancel();
+        future.cancel(true);
+    }
+
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    private static class TraversalThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        public TraversalThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2016 Frank Pavageau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ekino.neo4j.traversal;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.kernel.extension.KernelExtensionFactory;
+import org.neo4j.kernel.lifecycle.Lifecycle;
+import org.neo4j.kernel.lifecycle.LifecycleAdapter;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Kernel extension registering the transaction event handlers and the metrics MBean of the application, loaded by Neo4j
+ * from the {@code plugins} directory along with the unmanaged extension.
+ *
+ * With the "traversal-perfs.cache.snapshot" system property set to {@code true}, it restores the caches from their
+ * {@link CacheSnapshot} at startup, and saves them at shutdown.
+ *
+ * It also prewarms the caches in the background at startup, with the "traversal-perfs.cache.prewarm" system property
+ * set to {@code true}, and optionally "traversal-perfs.cache.prewarm.workers" and "traversal-perfs.cache.prewarm.rate".
+ */
+public class TraversalExtensionFactory extends KernelExtensionFactory<TraversalExtensionFactory.Dependencies> {
+    public interface Dependencies {
+        GraphDatabaseService getGraphDatabaseService();
+    }
+
+    public TraversalExtensionFactory() {
+        super("traversal-perfs");
+    }
+
+    @Override
+    public Lifecycle newKernelExtension(Dependencies dependencies) throws Throwable {
+        final GraphDatabaseService graphDb = dependencies.getGraphDatabaseService();
+        return new LifecycleAdapter() {
+            private final CacheInvalidationHandler cacheInvalidationHandler = new CacheInvalidationHandler();
+            private final ResultCacheInvalidationHandler resultCacheInvalidationHandler =
+                    new ResultCacheInvalidationHandler();
+            private final AggregateMaintenanceHandler aggregateMaintenanceHandler =
+                    new AggregateMaintenanceHandler(graphDb);
+
+            @Override
+            public void start() throws Throwable {
+                graphDb.registerTransactionEventHandler(cacheInvalidationHandler);
+                graphDb.registerTransactionEventHandler(aggregateMaintenanceHandler);
+                graphDb.registerTransactionEventHandler(resultCacheInvalidationHandler);
+                MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+                ObjectName name = new ObjectName(MetricsMBean.OBJECT_NAME);
+                // The metrics are static, and may have been registered by a previous database in the same JVM
+                if (!mBeanServer.isRegistered(name)) {
+                    mBeanServer.registerMBean(Metrics.INSTANCE, name);
+                }
+                if (Boolean.getBoolean(CacheSnapshot.ENABLED_PROPERTY)) {
+                    new CacheSnapshot(graphDb).load();
+                }
+                if (Boolean.getBoolean("traversal-perfs.cache.prewarm")) {
+                    CachePrewarmer.start(graphDb, Integer.getInteger("traversal-perfs.cache.prewarm.workers", 1),
+                            Integer.getInteger("traversal-perfs.cache.prewarm.rate", 0));
+                }
+            }
+
+            @Override
+            public void stop() throws Throwable {
+                CachePrewarmer.cancel();
+                if (Boolean.getBoolean(CacheSnapshot.ENABLED_PROPERTY)) {
+                    new CacheSnapshot(graphDb).save();
+                }
+                MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+                ObjectName name = new ObjectName(MetricsMBean.OBJECT_NAME);
+                if (mBeanServer.isRegistered(name)) {
+                    mBeanServer.unregisterMBean(name);
+                }
+                graphDb.unregisterTransactionEventHandler(resultCacheInvalidationHandler);
+                graphDb.unregisterTransactionEventHandler(aggregateMaintenanceHandler);
+                // The aggregates are maintained after the commits, whose changes would be lost by a restart
+                AggregateMaintenanceHandler.awaitMaintenance();
+                graphDb.unregisterTransactionEventHandler(cacheInvalidationHandler);
+            }
+        };
+    }
+}
@@ -16,7 +16,12 @@
 package com.ekino.neo4j.traversal;
 
 import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.ResourceIterator;
 import org.neo4j.graphdb.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
@@ -25,13 +30,55 @@ import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Resource performing a traversal to count the {@code B} nodes which "value" property is {@code true}.
+ *
+ * The traversal is breadth-first by default, or depth-first with the "depthFirst" query parameter. The "cache" query
+ * parameter enables the named caches, and "parallel" splits the tree into subtrees counted by that number of workers
+ * (up to the size of the shared pool of workers, or the request fails with a 400 status). The "engine" query parameter
+ * selects the {@link TraversalEngine}.
+ *
+ * The "start" query parameter counts the subtree of a node instead of the whole tree, and "check" cross-checks the
+ * count of the selected engine with the comma-separated engines it names, failing with a 500 status if they differ.
+ * Without a value, it compares the {@link SubtreeAggregates} with a traversal (using the "framework" engine when
+ * checking the "aggregate" one).
+ *
+ * The "maxDepth" query parameter only counts the nodes up to that number of relationships from the start node, and
+ * "value" the {@code B} nodes which "value" property is {@code false} instead of {@code true}: the traversal prunes
+ * the subtrees which can't match, so it only visits the requested region of the tree.
+ *
+ * The "result" cache, in the "cache" query parameter, caches the results in the {@link ResultCache}: concurrent
+ * identical requests then share the same traversal.
+ *
+ * The traversals run on the {@link TraversalExecutor}, which rejects them with a 503 status when too many are already
+ * running or queued (or streaming). The "timeout" query parameter (in milliseconds) gives them a deadline, checked by
+ * the traversal loops: a traversal still running at its deadline is cancelled, and the request gets a 504 status.
+ *
+ * The {@link RequestMetrics} of each traversal are logged, and added to the {@link Metrics}.
+ *
+ * The "stream" sub-resource returns the ids of the matching nodes instead of their number, and the "batch" one counts
+ * several subtrees at once.
  */
 @Path("/traverse")
 @Produces(MediaType.TEXT_PLAIN)
 public class TraversalResource {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TraversalResource.class);
+
+    /**
+     * Size of the buffer of the streamed ids, before they're written to the response.
+     */
+    private static final int STREAM_BUFFER_SIZE = 8192;
+
     private final GraphDatabaseService graphDb;
 
     public TraversalResource(@Context GraphDatabaseService graphDb) {
@@ -40,12 +87,387 @@ public class TraversalResource {
 
     @GET
     public Response traverse(@QueryParam("depthFirst") String depthFirstParameter,
-                             @QueryParam("cache") String cacheParameter) {
+                             @QueryParam("cache") String cacheParameter,
+                             @QueryParam("parallel") Integer parallelParameter,
+                             @QueryParam("engine") String engineParameter,
+                             @QueryParam("start") Long startParameter,
+                             @QueryParam("check") String checkParameter,
+                             @QueryParam("maxDepth") Integer maxDepthParameter,
+                             @QueryParam("value") Boolean valueParameter,
+                             @QueryParam("timeout") Long timeoutParameter) {
         boolean depthFirst = depthFirstParameter != null;
+        TraversalEngine engine = TraversalEngine.get(engineParameter);
+        int parallelism = parallelParameter != null && parallelParameter > 0 ? parallelParameter : 1;
+        if (parallelism > TraversalExecutor.INSTANCE.getMaxParallelism()) {
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .entity("The parallelism can't exceed " + TraversalExecutor.INSTANCE.getMaxParallelism() + "\n")
+                    .build();
+        }
+        int maxDepth = getMaxDepth(maxDepthParameter);
+        boolean value = valueParameter == null || valueParameter;
+        Deadline deadline = TraversalExecutor.deadline(timeoutParameter);
         Neo4jOperations neo4jOperations = Neo4jOperations.get(cacheParameter);
-        try (Transaction ignored = graphDb.beginTx()) {
-            int count = new TrueBNodesCounter(graphDb, neo4jOperations).count(depthFirst);
+        final RequestMetrics metrics = neo4jOperations.getMetrics();
+        metrics.start();
+        try {
+            if (checkParameter != null) {
+                TraversalEngine checkedEngine = engine;
+                List<TraversalEngine> referenceEngines;
+                if (checkParameter.isEmpty()) {
+                    checkedEngine = TraversalEngine.AGGREGATE;
+                    referenceEngines = Collections.singletonList(
+                            engine == TraversalEngine.AGGREGATE ? TraversalEngine.FRAMEWORK : engine);
+                } else {
+                    referenceEngines = TraversalEngine.getAll(checkParameter);
+                }
+                return new Check(neo4jOperations, deadline, checkedEngine, referenceEngines, depthFirst, parallelism,
+                        startParameter, maxDepth, value).execute(metrics);
+            }
+            final Traversal traversal = new Traversal(neo4jOperations, deadline, engine, depthFirst, parallelism,
+                    startParameter, maxDepth, value);
+            int count;
+            if (ResultCache.isEnabled(cacheParameter)) {
+                // Only the first of concurrent identical requests is admitted, the others wait for its result
+                count = ResultCache.INSTANCE.get(
+                        ResultCache.key(startParameter, engine, depthFirst, parallelism, maxDepth, value,
+                                cacheParameter),
+                        new Callable<Integer>() {
+                            @Override
+                            public Integer call() {
+                                return traversal.execute(metrics);
+                            }
+                        }, deadline, metrics);
+            } else {
+                count = traversal.execute(metrics);
+            }
             return Response.ok(count + "\n").build();
+        } catch (NotFoundException e) {
+            return Response.status(Response.Status.NOT_FOUND).entity(e.getMessage() + "\n").build();
+        } catch (IllegalArgumentException e) {
+            return Response.status(Response.Status.BAD_REQUEST).entity(e.getMessage() + "\n").build();
+        } catch (RejectedExecutionException e) {
+            return rejected(metrics);
+        } catch (TraversalCancelledException e) {
+            return cancelled(e, metrics);
+        } finally {
+            metrics.stop();
+            Metrics.INSTANCE.record(metrics);
+            LOGGER.info("Traversal done: {}", metrics);
+        }
+    }
+
+    /**
+     * Stream the ids of the matching nodes as they're found by the traversal, in chunks, with constant memory whatever
+     * the number of nodes: the ids are written to a bounded buffer, flushed to the response when full (and after the
+     * first id, to reduce the time to first byte).
+     *
+     * The "format" query parameter selects either {@code text}, one decimal id per line (the default), or
+     * {@code binary}, 8 bytes per id in big-endian order.
+     */
+    @GET
+    @Path("/stream")
+    @Produces({MediaType.TEXT_PLAIN, MediaType.APPLICATION_OCTET_STREAM})
+    public Response stream(@QueryParam("depthFirst") String depthFirstParameter,
+                           @QueryParam("cache") String cacheParameter,
+                           @QueryParam("start") Long startParameter,
+                           @QueryParam("format") String formatParameter,
+                           @QueryParam("maxDepth") Integer maxDepthParameter,
+                           @QueryParam("value") Boolean valueParameter,
+                           @QueryParam("timeout") Long timeoutParameter) {
+        long startId;
+        try (Transaction ignored = graphDb.beginTx()) {
+            startId = startParameter != null ? graphDb.getNodeById(startParameter).getId() : getRoot().getId();
+        } catch (NotFoundException e) {
+            return Response.status(Response.Status.NOT_FOUND).entity(e.getMessage() + "\n").build();
+        }
+        Neo4jOperations neo4jOperations = Neo4jOperations.get(cacheParameter);
+        // The permit is released once the response has been written
+        if (!TraversalExecutor.INSTANCE.admitStream()) {
+            RequestMetrics metrics = neo4jOperations.getMetrics();
+            metrics.start();
+            try {
+                return rejected(metrics);
+            } finally {
+                metrics.stop();
+                Metrics.INSTANCE.record(metrics);
+                LOGGER.info("Stream rejected: {}", metrics);
+            }
+        }
+        boolean binary = "binary".equals(formatParameter);
+        return Response.ok(
+                new MatchingNodesOutput(startId, depthFirstParameter != null, neo4jOperations,
+                        getMaxDepth(maxDepthParameter), valueParameter == null || valueParameter,
+                        TraversalExecutor.deadline(timeoutParameter), binary),
+                binary ? MediaType.APPLICATION_OCTET_STREAM_TYPE : MediaType.TEXT_PLAIN_TYPE)
+                .build();
+    }
+
+    /**
+     * Count the matching nodes in the subtrees of several nodes, given by repeating the "start" query parameter, in a
+     * single traversal of their union with {@link TrueBNodesCounter#count(long[])}. Each line of the response holds the
+     * id of a node and the count of its subtree, in the order of the parameters.
+     */
+    @GET
+    @Path("/batch")
+    public Response batch(@QueryParam("cache") String cacheParameter,
+                          @QueryParam("start") List<Long> startParameters,
+                          @QueryParam("timeout") Long timeoutParameter) {
+        if (startParameters.isEmpty()) {
+            return Response.status(Response.Status.BAD_REQUEST).entity("No start node\n").build();
+        }
+        long[] startIds = new long[startParameters.size()];
+        for (int i = 0; i < startIds.length; i++) {
+            startIds[i] = startParameters.get(i);
+        }
+        Neo4jOperations neo4jOperations = Neo4jOperations.get(cacheParameter);
+        RequestMetrics metrics = neo4jOperations.getMetrics();
+        metrics.start();
+        try {
+            int[] counts = new BatchTraversal(neo4jOperations, TraversalExecutor.deadline(timeoutParameter), startIds)
+                    .execute(metrics);
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < startIds.length; i++) {
+                sb.append(startIds[i]).append('\t').append(counts[i]).append('\n');
+            }
+            return Response.ok(sb.toString()).build();
+        } catch (NotFoundException e) {
+            return Response.status(Response.Status.NOT_FOUND).entity(e.getMessage() + "\n").build();
+        } catch (RejectedExecutionException e) {
+            return rejected(metrics);
+        } catch (TraversalCancelledException e) {
+            return cancelled(e, metrics);
+        } finally {
+            metrics.stop();
+            Metrics.INSTANCE.record(metrics);
+            LOGGER.info("Batch traversal of {} subtrees done: {}", startIds.length, metrics);
+        }
+    }
+
+    private static Response rejected(RequestMetrics metrics) {
+        metrics.reject();
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                .header("Retry-After", 1)
+                .entity("Too many traversals\n")
+                .build();
+    }
+
+    private static Response cancelled(TraversalCancelledException e, RequestMetrics metrics) {
+        metrics.cancel(e.isTimedOut());
+        // 504 Gateway Timeout isn't part of JAX-RS 1.1
+        return Response.status(e.isTimedOut() ? 504 : Response.Status.SERVICE_UNAVAILABLE.getStatusCode())
+                .entity(e.getMessage() + "\n")
+                .build();
+    }
+
+    private static int getMaxDepth(Integer maxDepthParameter) {
+        return maxDepthParameter != null && maxDepthParameter >= 0 ? maxDepthParameter : TrueBNodesCounter.UNBOUNDED;
+    }
+
+    private int count(TrueBNodesCounter counter, TraversalEngine engine, boolean depthFirst, int parallelism,
+                      Long startParameter) {
+        if (startParameter == null) {
+            return counter.count(engine, depthFirst, parallelism);
+        }
+        return counter.count(graphDb.getNodeById(startParameter), engine, depthFirst, parallelism);
+    }
+
+    private Response check(TrueBNodesCounter counter, TraversalEngine engine, List<TraversalEngine> referenceEngines,
+                           boolean depthFirst, int parallelism, Long startParameter) {
+        Node start = startParameter != null ? graphDb.getNodeById(startParameter) : getRoot();
+        int count = counter.count(start, engine, depthFirst, parallelism);
+        for (TraversalEngine referenceEngine : referenceEngines) {
+            int reference = counter.count(start, referenceEngine, depthFirst, parallelism);
+            if (count != reference) {
+                return Response.serverError()
+                        .entity("Inconsistent " + engine + " count: " + count + " instead of " + reference + " (" +
+                                referenceEngine + ")\n")
+                        .build();
+            }
+        }
+        return Response.ok(count + "\n").build();
+    }
+
+    private Node getRoot() {
+        try (ResourceIterator<Node> roots = graphDb.findNodes(Labels.Root)) {
+            if (!roots.hasNext()) {
+                throw new NotFoundException("No tree");
+            }
+            return roots.next();
+        }
+    }
+
+    /**
+     * Task run on the {@link TraversalExecutor}, in its own transaction as the transactions are bound to their thread,
+     * with the operations of a worker of the request.
+     */
+    private abstract class TraversalTask<T> implements Callable<T> {
+        protected final Neo4jOperations operations;
+        protected final Deadline deadline;
+
+        protected TraversalTask(Neo4jOperations requestOperations, Deadline deadline) {
+            operations = requestOperations.forWorker();
+            this.deadline = deadline;
+        }
+
+        @Override
+        public T call() {
+            operations.getMetrics().start();
+            try (Transaction ignored = graphDb.beginTx()) {
+                return traverse();
+            } finally {
+                operations.getMetrics().stop();
+            }
+        }
+
+        protected abstract T traverse();
+
+        /**
+         * Run the task on the executor, and wait for its result until its deadline.
+         *
+         * @param metrics The metrics of the request, to which the metrics of the task are added once it's done
+         * @return The result
+         */
+        public T execute(RequestMetrics metrics) {
+            T result = TraversalExecutor.INSTANCE.execute(this, deadline);
+            metrics.addWorker(operations.getMetrics());
+            return result;
+        }
+    }
+
+    private class Traversal extends TraversalTask<Integer> {
+        private final TraversalEngine engine;
+        private final boolean depthFirst;
+        private final int parallelism;
+        private final Long startParameter;
+        private final int maxDepth;
+        private final boolean value;
+
+        public Traversal(Neo4jOperations requestOperations, Deadline deadline, TraversalEngine engine,
+                         boolean depthFirst, int parallelism, Long startParameter, int maxDepth, boolean value) {
+            super(requestOperations, deadline);
+            this.engine = engine;
+            this.depthFirst = depthFirst;
+            this.parallelism = parallelism;
+            this.startParameter = startParameter;
+            this.maxDepth = maxDepth;
+            this.value = value;
+        }
+
+        @Override
+        protected Integer traverse() {
+            return count(new TrueBNodesCounter(graphDb, operations, maxDepth, value, deadline), engine, depthFirst,
+                    parallelism, startParameter);
+        }
+    }
+
+    private class Check extends TraversalTask<Response> {
+        private final TraversalEngine engine;
+        private final List<TraversalEngine> referenceEngines;
+        private final boolean depthFirst;
+        private final int parallelism;
+        private final Long startParameter;
+        private final int maxDepth;
+        private final boolean value;
+
+        public Check(Neo4jOperations requestOperations, Deadline deadline, TraversalEngine engine,
+                     List<TraversalEngine> referenceEngines, boolean depthFirst, int parallelism, Long startParameter,
+                     int maxDepth, boolean value) {
+            super(requestOperations, deadline);
+            this.engine = engine;
+            this.referenceEngines = referenceEngines;
+            this.depthFirst = depthFirst;
+            this.parallelism = parallelism;
+            this.startParameter = startParameter;
+            this.maxDepth = maxDepth;
+            this.value = value;
+        }
+
+        @Override
+        protected Response traverse() {
+            return check(new TrueBNodesCounter(graphDb, operations, maxDepth, value, deadline), engine,
+                    referenceEngines, depthFirst, parallelism, startParameter);
+        }
+    }
+
+    private class BatchTraversal extends TraversalTask<int[]> {
+        private final long[] startIds;
+
+        public BatchTraversal(Neo4jOperations requestOperations, Deadline deadline, long[] startIds) {
+            super(requestOperations, deadline);
+            this.startIds = startIds;
+        }
+
+        @Override
+        protected int[] traverse() {
+            return new TrueBNodesCounter(graphDb, operations, TrueBNodesCounter.UNBOUNDED, true, deadline)
+                    .count(startIds);
+        }
+    }
+
+    /**
+     * Output of the matching nodes, written by JAX-RS after the resource method has returned: the traversal runs in its
+     * own transaction, closed whether the stream completes or fails because the client disconnected. It runs in the
+     * thread writing the response, as it's bounded by the client anyway, but it's stopped by its deadline, which aborts
+     * the response.
+     */
+    private class MatchingNodesOutput implements StreamingOutput {
+        private final long startId;
+        private final boolean depthFirst;
+        private final Neo4jOperations neo4jOperations;
+        private final int maxDepth;
+        private final boolean value;
+        private final Deadline deadline;
+        private final boolean binary;
+
+        public MatchingNodesOutput(long startId, boolean depthFirst, Neo4jOperations neo4jOperations, int maxDepth,
+                                   boolean value, Deadline deadline, boolean binary) {
+            this.startId = startId;
+            this.depthFirst = depthFirst;
+            this.neo4jOperations = neo4jOperations;
+            this.maxDepth = maxDepth;
+            this.value = value;
+            this.deadline = deadline;
+            this.binary = binary;
+        }
+
+        @Override
+        public void write(OutputStream output) throws IOException {
+            RequestMetrics metrics = neo4jOperations.getMetrics();
+            metrics.start();
+            long written = 0;
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output, STREAM_BUFFER_SIZE));
+            try (Transaction ignored = graphDb.beginTx();
+                 ResourceIterator<Node> nodes = new TrueBNodesCounter(graphDb, neo4jOperations, maxDepth, value,
+                         deadline).find(graphDb.getNodeById(startId), depthFirst).iterator()) {
+                while (nodes.hasNext()) {
+                    long id = nodes.next().getId();
+                    if (binary) {
+                        out.writeLong(id);
+                    } else {
+                        out.writeBytes(Long.toString(id));
+                        out.write('\n');
+                    }
+                    if (++written == 1) {
+                        out.flush();
+                    }
+                }
+                out.flush();
+            } catch (IOException e) {
+                // The client went away, there's nobody left to report the error to
+                metrics.cancel(false);
+                LOGGER.info("Stream aborted after {} nodes: {}", written, e.toString());
+            } catch (TraversalCancelledException e) {
+                // The status has already been sent: failing the write makes the container abort the connection
+                // without the final chunk, so the client can't mistake the truncated stream for a complete one
+                metrics.cancel(e.isTimedOut());
+                LOGGER.info("Stream stopped after {} nodes: {}", written, e.getMessage());
+                throw new IOException("Stream stopped after " + written + " nodes", e);
+            } finally {
+                TraversalExecutor.INSTANCE.releaseStream();
+                metrics.stop();
+                Metrics.INSTANCE.record(metrics);
+                LOGGER.info("Stream done: {} nodes, {}", written, metrics);
+            }
         }
     }
 }
@@ -15,64 +15,682 @@
  */
 package com.ekino.neo4j.traversal;
 
+import it.unimi.dsi.fastutil.ints.IntArrayFIFOQueue;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayFIFOQueue;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Path;
 import org.neo4j.graphdb.PathExpander;
 import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.ResourceIterable;
 import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
 import org.neo4j.graphdb.traversal.BranchState;
 import org.neo4j.graphdb.traversal.Evaluation;
 import org.neo4j.graphdb.traversal.Evaluator;
 import org.neo4j.graphdb.traversal.TraversalDescription;
 import org.neo4j.graphdb.traversal.Uniqueness;
+import org.neo4j.kernel.impl.core.NodeManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 class TrueBNodesCounter {
     private static final Logger LOGGER = LoggerFactory.getLogger(TrueBNodesCounter.class);
 
+    /**
+     * Number of subtrees per worker in parallel mode, to balance the load if the subtrees have different sizes.
+     */
+    private static final int SUBTREES_PER_WORKER = 4;
+
+    /**
+     * Number of nodes checked by a worker of the label scan.
+     */
+    private static final int SCAN_BATCH_SIZE = 4096;
+
+    private static final int TRUE_B = NodeFlagsCache.B | NodeFlagsCache.TRUE_VALUE;
+
+    /**
+     * Maximum depth of an unbounded traversal.
+     */
+    static final int UNBOUNDED = Integer.MAX_VALUE;
+
     private final GraphDatabaseService graphDb;
     private final Neo4jOperations neo4jOperations;
+    private final int maxDepth;
+    private final boolean value;
+    private final Deadline deadline;
+    private final int matchingFlags;
+    private final TrueBEvaluator evaluator;
+    private final CustomPathExpander expander;
+    private int walked;
 
     public TrueBNodesCounter(GraphDatabaseService graphDb, Neo4jOperations neo4jOperations) {
+        this(graphDb, neo4jOperations, UNBOUNDED, true);
+    }
+
+    /**
+     * @param maxDepth The maximum depth of the matching nodes, in relationships from the start node, or
+     *                 {@link #UNBOUNDED}
+     * @param value The value of the "value" property of the matching {@code B} nodes
+     */
+    public TrueBNodesCounter(GraphDatabaseService graphDb, Neo4jOperations neo4jOperations, int maxDepth,
+                             boolean value) {
+        // Its own deadline, so that cancelling this traversal doesn't cancel the others
+        this(graphDb, neo4jOperations, maxDepth, value, Deadline.after(0));
+    }
+
+    /**
+     * @param maxDepth The maximum depth of the matching nodes, in relationships from the start node, or
+     *                 {@link #UNBOUNDED}
+     * @param value The value of the "value" property of the matching {@code B} nodes
+     * @param deadline The deadline checked by the traversal loops, which throw a
+     *                 {@link TraversalCancelledException} once it has passed
+     */
+    public TrueBNodesCounter(GraphDatabaseService graphDb, Neo4jOperations neo4jOperations, int maxDepth,
+                             boolean value, Deadline deadline) {
         this.graphDb = graphDb;
         this.neo4jOperations = neo4jOperations;
+        this.maxDepth = maxDepth;
+        this.value = value;
+        this.deadline = deadline;
+        matchingFlags = value ? TRUE_B : NodeFlagsCache.B;
+        evaluator = new TrueBEvaluator(neo4jOperations);
+        expander = new CustomPathExpander(neo4jOperations);
+    }
+
+    /**
+     * @return {@code true} if the traversal is neither bounded nor filtered, and can use the aggregates or projection
+     */
+    public boolean isUnfiltered() {
+        return maxDepth == UNBOUNDED && value;
+    }
+
+    /**
+     * Decide whether to expand a node: the children of an {@code A} node are {@code B} nodes which can match within
+     * the maximum depth, while the children of a {@code B} node are {@code A} nodes which never match, so they're only
+     * worth visiting if their own children are within the maximum depth. The other subtrees are pruned.
+     *
+     * @param flags The {@link NodeFlagsCache} flags of the node
+     * @param depth The depth of the node
+     * @return {@code true} if some of the descendants of the node can match
+     */
+    private boolean canContribute(int flags, int depth) {
+        if ((flags & NodeFlagsCache.B) != 0) {
+            return depth <= maxDepth - 2;
+        }
+        return depth < maxDepth;
+    }
+
+    private boolean matches(int flags) {
+        return (flags & TRUE_B) == matchingFlags;
     }
 
     public int count(boolean depthFirst) {
+        return count(TraversalEngine.FRAMEWORK, depthFirst, 1);
+    }
+
+    /**
+     * Count the matching nodes in the whole tree.
+     *
+     * @param engine The engine traversing the tree
+     * @param depthFirst Whether to traverse the tree depth-first, or breadth-first
+     * @param parallelism The number of workers counting the subtrees in parallel, each in its own transaction, 1 to
+     *                    traverse the whole tree in the current thread
+     * @throws IllegalArgumentException If the parallelism exceeds the {@link TraversalExecutor#getMaxParallelism()}
+     * @return The number of matching nodes, or -1 if there's no tree
+     */
+    public int count(TraversalEngine engine, boolean depthFirst, int parallelism) {
         try (ResourceIterator<Node> roots = graphDb.findNodes(Labels.Root)) {
             if (roots.hasNext()) {
-                return count(roots.next(), depthFirst);
+                return count(roots.next(), engine, depthFirst, parallelism);
             }
         }
         return -1;
     }
 
-    private int count(Node root, boolean depthFirst) {
-        LOGGER.info("Traversing the whole tree ({})", depthFirst ? "depth-first" : "breadth-first");
+    /**
+     * Count the matching nodes in a subtree.
+     *
+     * @param start The root of the subtree
+     * @param engine The engine traversing the subtree
+     * @param depthFirst Whether to traverse the subtree depth-first, or breadth-first
+     * @param parallelism The number of workers counting the subtrees in parallel, each in its own transaction, 1 to
+     *                    traverse the whole subtree in the current thread
+     * @throws IllegalArgumentException If the parallelism exceeds the {@link TraversalExecutor#getMaxParallelism()}
+     * @return The number of matching nodes
+     */
+    public int count(Node start, TraversalEngine engine, boolean depthFirst, int parallelism) {
+        if (parallelism > TraversalExecutor.INSTANCE.getMaxParallelism()) {
+            throw new IllegalArgumentException("The parallelism can't exceed " +
+                    TraversalExecutor.INSTANCE.getMaxParallelism());
+        }
+        if ((engine == TraversalEngine.AGGREGATE || engine == TraversalEngine.PROJECTION) && !isUnfiltered()) {
+            throw new IllegalArgumentException("The " + engine + " engine can't bound the depth or filter the value");
+        }
+        if (engine == TraversalEngine.AGGREGATE) {
+            return new SubtreeAggregates(graphDb).count(start);
+        }
+        if (engine == TraversalEngine.PROJECTION) {
+            return countInProjection(start, depthFirst);
+        }
+        if (engine == TraversalEngine.LABEL_SCAN) {
+            return countByLabelScan(start, parallelism);
+        }
+        if (parallelism > 1) {
+            return countInParallel(start, engine, depthFirst, parallelism);
+        }
+        LOGGER.info("Traversing the tree from node {} ({}, {})", start.getId(), engine,
+                depthFirst ? "depth-first" : "breadth-first");
+        return count(start, engine, depthFirst);
+    }
+
+    /**
+     * Count the matching nodes in several subtrees at once, in a single depth-first pass over their union: the
+     * requested subtrees nested in another one are traversed as part of it, each node carrying the index of its closest
+     * requested ancestor, which gets its matches. Once the pass is over, the count of each subtree is added to its
+     * requested ancestors, so a node is visited once whatever the number of subtrees it belongs to.
+     *
+     * @param startIds The ids of the roots of the subtrees, possibly nested or duplicated
+     * @return The number of matching nodes in each subtree, in the same order
+     * @throws org.neo4j.graphdb.NotFoundException If a root doesn't exist
+     */
+    public int[] count(long[] startIds) {
+        LOGGER.info("Traversing {} subtrees at once", startIds.length);
+        Long2IntMap indices = new Long2IntOpenHashMap(startIds.length);
+        indices.defaultReturnValue(-1);
+        for (int i = 0; i < startIds.length; i++) {
+            if (!indices.containsKey(startIds[i])) {
+                indices.put(startIds[i], i);
+            }
+        }
+
+        // Only the outermost subtrees are traversed, the others are reached through them
+        int[] parents = new int[startIds.length];
+        Arrays.fill(parents, -1);
+        LongArrayList stack = new LongArrayList();
+        IntArrayList owners = new IntArrayList();
+        for (int i = 0; i < startIds.length; i++) {
+            if (indices.get(startIds[i]) != i) {
+                continue;
+            }
+            Node ancestor = getParent(graphDb.getNodeById(startIds[i]));
+            while (ancestor != null && parents[i] < 0) {
+                parents[i] = indices.get(ancestor.getId());
+                ancestor = getParent(ancestor);
+            }
+            if (parents[i] < 0) {
+                stack.push(startIds[i]);
+                owners.push(i);
+            }
+        }
+
+        NodeManager nodeManager = Neo4jInternals.resolveDependency(graphDb, NodeManager.class);
+        LongArrayList childIds = new LongArrayList();
+        RequestMetrics metrics = neo4jOperations.getMetrics();
+        int[] ownCounts = new int[startIds.length];
+        int visited = 0;
+        while (!stack.isEmpty()) {
+            if ((++visited & Deadline.CHECK_INTERVAL_MASK) == 0) {
+                deadline.check();
+            }
+            Node node = nodeManager.newNodeProxyById(stack.popLong());
+            int owner = owners.popInt();
+            metrics.visitNode();
+            int flags = neo4jOperations.getTreeFlags(node);
+            if ((flags & TRUE_B) == TRUE_B) {
+                ownCounts[owner]++;
+            }
+            childIds.clear();
+            expander.getChildIds(node, flags, childIds);
+            for (int i = 0; i < childIds.size(); i++) {
+                metrics.expandRelationship();
+                long childId = childIds.getLong(i);
+                int index = indices.get(childId);
+                stack.push(childId);
+                owners.push(index >= 0 ? index : owner);
+            }
+        }
+
+        int[] counts = new int[startIds.length];
+        for (int i = 0; i < startIds.length; i++) {
+            for (int index = i; index >= 0 && ownCounts[i] > 0; index = parents[index]) {
+                counts[index] += ownCounts[i];
+            }
+        }
+        for (int i = 0; i < startIds.length; i++) {
+            counts[i] = counts[indices.get(startIds[i])];
+        }
+        return counts;
+    }
+
+    /**
+     * @return The parent of a node in the tree, or {@code null} for the root
+     */
+    private static Node getParent(Node node) {
+        Iterator<Relationship> relationships = node.getRelationships(Direction.INCOMING, RelationshipTypes.HAS_A,
+                RelationshipTypes.HAS_B).iterator();
+        return relationships.hasNext() ? relationships.next().getStartNode() : null;
+    }
+
+    /**
+     * Split the tree into subtrees by expanding its first levels breadth-first until there are enough subtrees for the
+     * workers, then count the subtrees in parallel on the shared pool of workers.
+     */
+    private int countInParallel(Node root, TraversalEngine engine, boolean depthFirst, int parallelism) {
+        LOGGER.info("Traversing the tree from node {} ({}, {}) with {} workers", root.getId(), engine,
+                depthFirst ? "depth-first" : "breadth-first", parallelism);
+        int count = 0;
+        int depth = 0;
+        Collection<Node> subtrees = Collections.singleton(root);
+        while (subtrees.size() < parallelism * SUBTREES_PER_WORKER) {
+            Collection<Node> children = new ArrayList<>();
+            deadline.check();
+            for (Node node : subtrees) {
+                neo4jOperations.getMetrics().visitNode();
+                int flags = neo4jOperations.getTreeFlags(node);
+                if (matches(flags)) {
+                    count++;
+                }
+                if (!canContribute(flags, depth)) {
+                    continue;
+                }
+                for (Relationship relationship : expander.expand(node)) {
+                    neo4jOperations.getMetrics().expandRelationship();
+                    children.add(relationship.getEndNode());
+                }
+            }
+            if (children.isEmpty()) {
+                // The whole tree has been counted
+                return count;
+            }
+            subtrees = children;
+            depth++;
+        }
+
+        // All the subtrees are at the same depth, their own depth is bounded by the rest of the maximum depth
+        int subtreeMaxDepth = maxDepth == UNBOUNDED ? UNBOUNDED : maxDepth - depth;
+        List<SubtreeCount> tasks = new ArrayList<>(subtrees.size());
+        for (Node subtree : subtrees) {
+            tasks.add(new SubtreeCount(subtree.getId(), engine, depthFirst, subtreeMaxDepth));
+        }
+        return count + sum(tasks);
+    }
+
+    /**
+     * Run the tasks of the workers on the shared pool of the {@link TraversalExecutor}, and add up their counts. Their
+     * metrics are added to the ones of the request.
+     */
+    private int sum(List<? extends WorkerCount> tasks) {
+        int count = 0;
+        try {
+            for (Future<Integer> result : TraversalExecutor.INSTANCE.invokeWorkers(tasks)) {
+                count += result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            // The workers stop at their next check
+            deadline.cancel();
+            throw new TraversalCancelledException(false);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TraversalCancelledException) {
+                throw (TraversalCancelledException) e.getCause();
+            }
+            throw new IllegalStateException("Failed to count in a worker", e.getCause());
+        }
+        for (WorkerCount task : tasks) {
+            neo4jOperations.getMetrics().addWorker(task.operations.getMetrics());
+        }
+        return count;
+    }
+
+    private int count(Node root, TraversalEngine engine, boolean depthFirst) {
+        switch (engine) {
+            case NODE_IDS:
+                return countByNodeIds(root, depthFirst);
+            case CORE:
+                return countRecursively(root, 0);
+            case CYPHER:
+                return countWithCypher(root);
+            default:
+                return countWithFramework(root, depthFirst);
+        }
+    }
+
+    private int countInProjection(Node start, boolean depthFirst) {
+        GraphProjection projection = GraphProjection.get();
+        if (projection == null) {
+            throw new IllegalStateException("The projection hasn't been built");
+        }
+        LOGGER.info("Traversing the projection from node {} ({})", start.getId(),
+                depthFirst ? "depth-first" : "breadth-first");
+        return projection.count(start.getId(), depthFirst);
+    }
+
+    /**
+     * Find the matching nodes in a subtree with the traversal framework, lazily: the nodes are only traversed as
+     * they're iterated, so the whole result is never held in memory.
+     *
+     * @param start The root of the subtree
+     * @param depthFirst Whether to traverse the subtree depth-first, or breadth-first
+     * @return The matching nodes, to iterate in the current transaction and close once done
+     */
+    public ResourceIterable<Node> find(Node start, boolean depthFirst) {
+        LOGGER.info("Traversing the tree from node {} (framework, {}) to find the nodes", start.getId(),
+                depthFirst ? "depth-first" : "breadth-first");
+        return traversalDescription(depthFirst).traverse(start).nodes();
+    }
+
+    private TraversalDescription traversalDescription(boolean depthFirst) {
         TraversalDescription td = graphDb.traversalDescription()
                 .uniqueness(Uniqueness.NONE)
-                .evaluator(new TrueBEvaluator(neo4jOperations))
-                .expand(new CustomPathExpander(neo4jOperations));
+                .evaluator(evaluator)
+                .expand(expander);
         if (depthFirst) {
             td = td.depthFirst();
         } else {
             td = td.breadthFirst();
         }
+        return td;
+    }
 
+    private int countWithFramework(Node root, boolean depthFirst) {
         int count = 0;
-        for (Path ignored : td.traverse(root)) {
+        for (Path ignored : traversalDescription(depthFirst).traverse(root)) {
             count++;
         }
         return count;
     }
 
-    private static class TrueBEvaluator implements Evaluator {
+    /**
+     * Traverse the tree with a loop over a primitive stack (depth-first) or ring buffer (breadth-first) of node ids,
+     * avoiding the {@code Path} and {@code TraversalBranch} instances of the traversal framework. The nodes are
+     * recreated from their ids as lightweight proxies, without checking their existence in the store, and their labels
+     * and value are read at once with {@link Neo4jOperations#getTreeFlags(Node)}. Only the ids of the children are
+     * needed, so they come from the adjacency cache when it's enabled, without reading the relationships.
+     */
+    private int countByNodeIds(Node root, boolean depthFirst) {
+        NodeManager nodeManager = Neo4jInternals.resolveDependency(graphDb, NodeManager.class);
+        NodeIdFrontier frontier = depthFirst ? new NodeIdStack() : new NodeIdQueue();
+        frontier.add(root.getId(), 0);
+        LongArrayList childIds = new LongArrayList();
+        RequestMetrics metrics = neo4jOperations.getMetrics();
+        int count = 0;
+        int visited = 0;
+        while (!frontier.isEmpty()) {
+            if ((++visited & Deadline.CHECK_INTERVAL_MASK) == 0) {
+                deadline.check();
+            }
+            Node node = nodeManager.newNodeProxyById(frontier.next());
+            int depth = frontier.depth();
+            metrics.visitNode();
+            int flags = neo4jOperations.getTreeFlags(node);
+            if (matches(flags)) {
+                count++;
+            }
+            if (!canContribute(flags, depth)) {
+                continue;
+            }
+            childIds.clear();
+            expander.getChildIds(node, flags, childIds);
+            for (int i = 0; i < childIds.size(); i++) {
+                metrics.expandRelationship();
+                frontier.add(childIds.getLong(i), depth + 1);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Traverse the tree with a recursive walk over the core API, without any frontier or {@code Path}: the call stack
+     * holds the current path, so the walk is always depth-first, and its depth is bounded by the height of the tree.
+     */
+    private int countRecursively(Node node, int depth) {
+        if ((++walked & Deadline.CHECK_INTERVAL_MASK) == 0) {
+            deadline.check();
+        }
+        RequestMetrics metrics = neo4jOperations.getMetrics();
+        metrics.visitNode();
+        int flags = neo4jOperations.getTreeFlags(node);
+        int count = matches(flags) ? 1 : 0;
+        if (canContribute(flags, depth)) {
+            for (Relationship relationship : expander.expand(node, flags)) {
+                metrics.expandRelationship();
+                count += countRecursively(relationship.getEndNode(), depth + 1);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Count the matching nodes with a Cypher query, its variable-length pattern bounded by the maximum depth. The
+     * query reads the store directly, so it doesn't use the caches nor record the visited nodes in the metrics, and its
+     * deadline is only checked before it runs, as it can't be interrupted.
+     */
+    private int countWithCypher(Node root) {
+        deadline.check();
+        String query = "MATCH (start)-[:" + RelationshipTypes.HAS_A.name() + "|" + RelationshipTypes.HAS_B.name() +
+                "*0.." + (maxDepth == UNBOUNDED ? "" : maxDepth) + "]->(node:" + Labels.B.name() + ") " +
+                "WHERE id(start) = {start} AND coalesce(node." + PropertyKey.VALUE.getName() + ", false) = {value} " +
+                "RETURN count(node) AS count";
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("start", root.getId());
+        parameters.put("value", value);
+        try (ResourceIterator<Number> counts = graphDb.execute(query, parameters).columnAs("count")) {
+            return counts.next().intValue();
+        }
+    }
+
+    /**
+     * Count the matching nodes without walking the tree: the {@code B} nodes are scanned by label, in batches which
+     * values are checked by the workers in parallel (or in the current thread without parallelism). Unless the whole
+     * tree is counted, a node only matches if the start node is among its ancestors within the maximum depth, so its
+     * parent chain is walked up, which costs more than the walk down for small regions of the tree.
+     */
+    private int countByLabelScan(Node start, int parallelism) {
+        boolean wholeTree = maxDepth == UNBOUNDED && neo4jOperations.hasLabel(start, Labels.Root);
+        LOGGER.info("Scanning the B nodes of the tree from node {} with {} workers", start.getId(), parallelism);
+        int count = 0;
+        List<ScannedCount> tasks = new ArrayList<>();
+        LongArrayList batch = new LongArrayList(SCAN_BATCH_SIZE);
+        try (ResourceIterator<Node> nodes = graphDb.findNodes(Labels.B)) {
+            while (nodes.hasNext()) {
+                batch.add(nodes.next().getId());
+                if (batch.size() == SCAN_BATCH_SIZE || !nodes.hasNext()) {
+                    if (parallelism > 1) {
+                        tasks.add(new ScannedCount(start.getId(), wholeTree, batch));
+                        batch = new LongArrayList(SCAN_BATCH_SIZE);
+                    } else {
+                        count += countScanned(start.getId(), wholeTree, batch);
+                        batch.clear();
+                    }
+                }
+            }
+        }
+        return tasks.isEmpty() ? count : sum(tasks);
+    }
+
+    private int countScanned(long startId, boolean wholeTree, LongArrayList nodeIds) {
+        NodeManager nodeManager = Neo4jInternals.resolveDependency(graphDb, NodeManager.class);
+        RequestMetrics metrics = neo4jOperations.getMetrics();
+        int count = 0;
+        for (int i = 0; i < nodeIds.size(); i++) {
+            if ((i & Deadline.CHECK_INTERVAL_MASK) == 0) {
+                deadline.check();
+            }
+            Node node = nodeManager.newNodeProxyById(nodeIds.getLong(i));
+            metrics.visitNode();
+            if (neo4jOperations.getBooleanProperty(node, PropertyKey.VALUE, false) == value &&
+                    (wholeTree || isInRegion(node, startId))) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return {@code true} if the start node is the node itself or one of its ancestors, within the maximum depth
+     */
+    private boolean isInRegion(Node node, long startId) {
+        Node ancestor = node;
+        for (int depth = 0; ancestor != null && depth <= maxDepth; depth++) {
+            if (ancestor.getId() == startId) {
+                return true;
+            }
+            neo4jOperations.getMetrics().expandRelationship();
+            ancestor = getParent(ancestor);
+        }
+        return false;
+    }
+
+    private interface NodeIdFrontier {
+        void add(long nodeId, int depth);
+
+        long next();
+
+        /**
+         * @return The depth of the node returned by the last call to {@link #next()}
+         */
+        int depth();
+
+        boolean isEmpty();
+    }
+
+    private static class NodeIdStack implements NodeIdFrontier {
+        private final LongArrayList stack = new LongArrayList();
+        private final IntArrayList depths = new IntArrayList();
+        private int depth;
+
+        @Override
+        public void add(long nodeId, int depth) {
+            stack.push(nodeId);
+            depths.push(depth);
+        }
+
+        @Override
+        public long next() {
+            depth = depths.popInt();
+            return stack.popLong();
+        }
+
+        @Override
+        public int depth() {
+            return depth;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return stack.isEmpty();
+        }
+    }
+
+    private static class NodeIdQueue implements NodeIdFrontier {
+        private final LongArrayFIFOQueue queue = new LongArrayFIFOQueue();
+        private final IntArrayFIFOQueue depths = new IntArrayFIFOQueue();
+        private int depth;
+
+        @Override
+        public void add(long nodeId, int depth) {
+            queue.enqueue(nodeId);
+            depths.enqueue(depth);
+        }
+
+        @Override
+        public long next() {
+            depth = depths.dequeueInt();
+            return queue.dequeueLong();
+        }
+
+        @Override
+        public int depth() {
+            return depth;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return queue.isEmpty();
+        }
+    }
+
+    /**
+     * Count run by a worker, in its own transaction as the transaction of the request is bound to its thread, with the
+     * operations of a worker of the request.
+     */
+    private abstract class WorkerCount implements Callable<Integer> {
+        protected final Neo4jOperations operations = neo4jOperations.forWorker();
+
+        @Override
+        public Integer call() {
+            // The request may have been cancelled while the worker was queued
+            deadline.check();
+            operations.getMetrics().start();
+            try (Transaction ignored = graphDb.beginTx()) {
+                return count();
+            } finally {
+                operations.getMetrics().stop();
+            }
+        }
+
+        protected abstract int count();
+    }
+
+    private class SubtreeCount extends WorkerCount {
+        private final long subtreeId;
+        private final TraversalEngine engine;
+        private final boolean depthFirst;
+        private final int subtreeMaxDepth;
+
+        public SubtreeCount(long subtreeId, TraversalEngine engine, boolean depthFirst, int subtreeMaxDepth) {
+            this.subtreeId = subtreeId;
+            this.engine = engine;
+            this.depthFirst = depthFirst;
+            this.subtreeMaxDepth = subtreeMaxDepth;
+        }
+
+        @Override
+        protected int count() {
+            return new TrueBNodesCounter(graphDb, operations, subtreeMaxDepth, value, deadline)
+                    .count(graphDb.getNodeById(subtreeId), engine, depthFirst);
+        }
+    }
+
+    private class ScannedCount extends WorkerCount {
+        private final long startId;
+        private final boolean wholeTree;
+        private final LongArrayList nodeIds;
+
+        public ScannedCount(long startId, boolean wholeTree, LongArrayList nodeIds) {
+            this.startId = startId;
+            this.wholeTree = wholeTree;
+            this.nodeIds = nodeIds;
+        }
+
+        @Override
+        protected int count() {
+            return new TrueBNodesCounter(graphDb, operations, maxDepth, value, deadline)
+                    .countScanned(startId, wholeTree, nodeIds);
+        }
+    }
+
+    private class TrueBEvaluator implements Evaluator {
         private final Neo4jOperations neo4jOperations;
+        private int evaluated;
 
         public TrueBEvaluator(Neo4jOperations neo4jOperations) {
             this.neo4jOperations = neo4jOperations;
@@ -80,14 +698,21 @@ class TrueBNodesCounter {
 
         @Override
         public Evaluation evaluate(Path path) {
+            if ((++evaluated & Deadline.CHECK_INTERVAL_MASK) == 0) {
+                deadline.check();
+            }
+            if (path.lastRelationship() != null) {
+                neo4jOperations.getMetrics().expandRelationship();
+            }
             Node endNode = path.endNode();
-            return Evaluation.ofIncludes(includes(endNode));
-        }
-
-        private boolean includes(Node endNode) {
-            String propName = "value";
-            return neo4jOperations.hasLabel(endNode, Labels.B) &&
-                    (Boolean) neo4jOperations.getProperty(endNode, propName);
+            neo4jOperations.getMetrics().visitNode();
+            if (isUnfiltered()) {
+                return Evaluation.ofIncludes(neo4jOperations.hasLabel(endNode, Labels.B) &&
+                        neo4jOperations.getBooleanProperty(endNode, PropertyKey.VALUE, false));
+            }
+            // Pruning needs the labels of every node, read at once
+            int flags = neo4jOperations.getTreeFlags(endNode);
+            return Evaluation.of(matches(flags), canContribute(flags, path.length()));
         }
 
         @Override
@@ -105,7 +730,19 @@ class TrueBNodesCounter {
 
         @Override
         public Iterable<Relationship> expand(Path path, BranchState<Object> state) {
-            Node endNode = path.endNode();
+            return expand(path.endNode());
+        }
+
+        private Iterable<Relationship> expand(Node endNode, int flags) {
+            if ((flags & NodeFlagsCache.A) != 0) {
+                return endNode.getRelationships(Direction.OUTGOING, RelationshipTypes.HAS_B);
+            } else if ((flags & NodeFlagsCache.B) != 0) {
+                return endNode.getRelationships(Direction.OUTGOING, RelationshipTypes.HAS_A);
+            }
+            return Collections.emptyList();
+        }
+
+        private Iterable<Relationship> expand(Node endNode) {
             if (neo4jOperations.hasLabel(endNode, Labels.A)) {
                 return endNode.getRelationships(Direction.OUTGOING, RelationshipTypes.HAS_B);
             } else if (neo4jOperations.hasLabel(endNode, Labels.B)) {
@@ -114,6 +751,14 @@ class TrueBNodesCounter {
             return Collections.emptyList();
         }
 
+        private void getChildIds(Node endNode, int flags, LongArrayList childIds) {
+            if ((flags & NodeFlagsCache.A) != 0) {
+                neo4jOperations.getChildIds(endNode, RelationshipTypes.HAS_B, childIds);
+            } else if ((flags & NodeFlagsCache.B) != 0) {
+                neo4jOperations.getChildIds(endNode, RelationshipTypes.HAS_A, childIds);
+            }
+        }
+
         @Override
         public PathExpander<Object> reverse() {
             throw new UnsupportedOperationException();
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2016 Frank Pavageau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ekino.neo4j.traversal;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+import org.neo4j.tooling.GlobalGraphOperations;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Check that the aggregates follow the writes: concurrent writers change the values and labels of the tree, attach
+ * and delete leaves, each in its own share of the nodes, so that the interior nodes written by one are ancestors of
+ * the nodes written by the others. No write may fail, and once the maintenance has caught up, the aggregate of every
+ * {@code A} node must match a traversal of its subtree.
+ */
+public class AggregateMaintenanceHandlerTest {
+    private static final int WRITERS = 4;
+    private static final int ROUNDS = 3;
+    private static final int WRITES_PER_ROUND = 250;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private GraphDatabaseService graphDb;
+    private final LongArrayList nodeIds = new LongArrayList();
+
+    @Before
+    public void setUp() {
+        graphDb = new GraphDatabaseFactory().newEmbeddedDatabase(folder.getRoot().getAbsolutePath());
+        new PopulateResource(graphDb).populate(3, 4, 42, 1);
+        new SubtreeAggregates(graphDb).build();
+        try (Transaction ignored = graphDb.beginTx()) {
+            for (Node node : GlobalGraphOperations.at(graphDb).getAllNodes()) {
+                if (!node.hasLabel(Labels.Root)) {
+                    nodeIds.add(node.getId());
+                }
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        graphDb.shutdown();
+    }
+
+    @Test
+    public void aggregatesMatchTraversalsAfterConcurrentWrites() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(WRITERS);
+        try {
+            for (int round = 0; round < ROUNDS; round++) {
+                List<Future<?>> writers = new ArrayList<>();
+                for (int i = 0; i < WRITERS; i++) {
+                    writers.add(executor.submit(new Writer(i, new Random(round * WRITERS + i))));
+                }
+                for (Future<?> writer : writers) {
+                    writer.get();
+                }
+                AggregateMaintenanceHandler.awaitMaintenance();
+
+                try (Transaction ignored = graphDb.beginTx()) {
+                    SubtreeAggregates aggregates = new SubtreeAggregates(graphDb);
+                    TrueBNodesCounter counter = new TrueBNodesCounter(graphDb, Neo4jOperations.get(null));
+                    for (Node node : GlobalGraphOperations.at(graphDb).getAllNodesWithLabel(Labels.A)) {
+                        assertEquals("Round " + round + ", node " + node.getId(),
+                                counter.count(node, TraversalEngine.FRAMEWORK, true, 1), aggregates.count(node));
+                    }
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Writer changing its own share of the tree, one node per transaction, so that the writers never wait for each
+     * other's locks, only for the ones of the maintenance.
+     */
+    private class Writer implements Callable<Void> {
+        private final int index;
+        private final Random random;
+        private final LongArrayList createdIds = new LongArrayList();
+
+        public Writer(int index, Random random) {
+            this.index = index;
+            this.random = random;
+        }
+
+        @Override
+        public Void call() {
+            for (int i = 0; i < WRITES_PER_ROUND; i++) {
+                try (Transaction tx = graphDb.beginTx()) {
+                    Node node = graphDb.getNodeById(pickNodeId());
+                    switch (random.nextInt(5)) {
+                        case 0:
+                            node.setProperty(PropertyKey.VALUE.getName(),
+                                    !(Boolean) node.getProperty(PropertyKey.VALUE.getName(), false));
+                            break;
+                        case 1:
+                            toggle(node, Labels.B);
+                            break;
+                        case 2:
+                            toggle(node, Labels.A);
+                            break;
+                        case 3:
+                            Node leaf = graphDb.createNode(Labels.B);
+                            leaf.setProperty(PropertyKey.VALUE.getName(), random.nextBoolean());
+                            node.createRelationshipTo(leaf, node.hasLabel(Labels.A)
+                                    ? RelationshipTypes.HAS_B
+                                    : RelationshipTypes.HAS_A);
+                            createdIds.add(leaf.getId());
+                            break;
+                        default:
+                            if (!createdIds.isEmpty()) {
+                                Node created = graphDb.getNodeById(createdIds.removeLong(createdIds.size() - 1));
+                                for (Relationship relationship : created.getRelationships()) {
+                                    relationship.delete();
+                                }
+                                created.delete();
+                            }
+                    }
+                    tx.success();
+                }
+            }
+            return null;
+        }
+
+        private void toggle(Node node, Label label) {
+            if (node.hasLabel(label)) {
+                node.removeLabel(label);
+            } else {
+                node.addLabel(label);
+            }
+        }
+
+        private long pickNodeId() {
+            int count = nodeIds.size() / WRITERS;
+            return nodeIds.getLong(random.nextInt(count) * WRITERS + index);
+        }
+    }
+}
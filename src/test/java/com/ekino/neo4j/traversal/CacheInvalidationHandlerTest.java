@@ -0,0 +1,208 @@
+/*
+ * Copyright 2016 Frank Pavageau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ekino.neo4j.traversal;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+import org.neo4j.tooling.GlobalGraphOperations;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Check that the caches stay coherent with the writes: concurrent writers change the values and labels of the tree,
+ * attach and delete leaves, while readers traverse it with the caches enabled. Once the writers are done, the cached
+ * counts must match an uncached traversal.
+ */
+public class CacheInvalidationHandlerTest {
+    private static final int WRITERS = 4;
+    private static final int READERS = 4;
+    private static final int ROUNDS = 3;
+    private static final int WRITES_PER_ROUND = 250;
+    private static final String[] CACHES = {"label,property", "label,property,adjacency", "bitset",
+            "bitset,adjacency"};
+    private static final TraversalEngine[] ENGINES = {TraversalEngine.FRAMEWORK, TraversalEngine.NODE_IDS};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private GraphDatabaseService graphDb;
+    private final LongArrayList nodeIds = new LongArrayList();
+
+    @Before
+    public void setUp() {
+        graphDb = new GraphDatabaseFactory().newEmbeddedDatabase(folder.getRoot().getAbsolutePath());
+        new PopulateResource(graphDb).populate(3, 4, 42, 1);
+        Neo4jOperations.clearCache();
+        try (Transaction ignored = graphDb.beginTx()) {
+            for (Node node : GlobalGraphOperations.at(graphDb).getAllNodes()) {
+                if (!node.hasLabel(Labels.Root)) {
+                    nodeIds.add(node.getId());
+                }
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        graphDb.shutdown();
+        Neo4jOperations.clearCache();
+    }
+
+    @Test
+    public void cachedCountsMatchUncachedCountsAfterConcurrentWrites() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(WRITERS + READERS);
+        try {
+            for (int round = 0; round < ROUNDS; round++) {
+                AtomicBoolean writing = new AtomicBoolean(true);
+                List<Future<?>> writers = new ArrayList<>();
+                for (int i = 0; i < WRITERS; i++) {
+                    writers.add(executor.submit(new Writer(i, new Random(round * WRITERS + i))));
+                }
+                List<Future<?>> readers = new ArrayList<>();
+                for (int i = 0; i < READERS; i++) {
+                    readers.add(executor.submit(new Reader(writing, new Random(-round * READERS - i))));
+                }
+                for (Future<?> writer : writers) {
+                    writer.get();
+                }
+                writing.set(false);
+                for (Future<?> reader : readers) {
+                    reader.get();
+                }
+
+                for (TraversalEngine engine : ENGINES) {
+                    int expected = count("", engine);
+                    for (String cache : CACHES) {
+                        assertEquals("Round " + round + ", " + engine + " engine with cache=" + cache, expected,
+                                count(cache, engine));
+                    }
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private int count(String cache, TraversalEngine engine) {
+        try (Transaction ignored = graphDb.beginTx()) {
+            return new TrueBNodesCounter(graphDb, Neo4jOperations.get(cache)).count(engine, true, 1);
+        }
+    }
+
+    /**
+     * Writer changing its own share of the tree, one node per transaction, so that the writers never wait for each
+     * other's locks.
+     */
+    private class Writer implements Callable<Void> {
+        private final int index;
+        private final Random random;
+        private final LongArrayList createdIds = new LongArrayList();
+
+        public Writer(int index, Random random) {
+            this.index = index;
+            this.random = random;
+        }
+
+        @Override
+        public Void call() {
+            for (int i = 0; i < WRITES_PER_ROUND; i++) {
+                try (Transaction tx = graphDb.beginTx()) {
+                    Node node = graphDb.getNodeById(pickNodeId());
+                    switch (random.nextInt(4)) {
+                        case 0:
+                            node.setProperty(PropertyKey.VALUE.getName(),
+                                    !(Boolean) node.getProperty(PropertyKey.VALUE.getName(), false));
+                            break;
+                        case 1:
+                            if (node.hasLabel(Labels.B)) {
+                                node.removeLabel(Labels.B);
+                            } else {
+                                node.addLabel(Labels.B);
+                            }
+                            break;
+                        case 2:
+                            Node leaf = graphDb.createNode(Labels.B);
+                            leaf.setProperty(PropertyKey.VALUE.getName(), random.nextBoolean());
+                            node.createRelationshipTo(leaf, node.hasLabel(Labels.A)
+                                    ? RelationshipTypes.HAS_B
+                                    : RelationshipTypes.HAS_A);
+                            createdIds.add(leaf.getId());
+                            break;
+                        default:
+                            if (!createdIds.isEmpty()) {
+                                Node created = graphDb.getNodeById(createdIds.removeLong(createdIds.size() - 1));
+                                for (Relationship relationship : created.getRelationships()) {
+                                    relationship.delete();
+                                }
+                                created.delete();
+                            }
+                    }
+                    tx.success();
+                }
+            }
+            return null;
+        }
+
+        private long pickNodeId() {
+            int count = nodeIds.size() / WRITERS;
+            return nodeIds.getLong(random.nextInt(count) * WRITERS + index);
+        }
+    }
+
+    /**
+     * Reader traversing the tree with random caches and engines while the writers are running, filling the caches.
+     */
+    private class Reader implements Callable<Void> {
+        private final AtomicBoolean writing;
+        private final Random random;
+
+        public Reader(AtomicBoolean writing, Random random) {
+            this.writing = writing;
+            this.random = random;
+        }
+
+        @Override
+        public Void call() {
+            while (writing.get()) {
+                try {
+                    count(CACHES[random.nextInt(CACHES.length)], ENGINES[random.nextInt(ENGINES.length)]);
+                } catch (NotFoundException e) {
+                    // A leaf deleted by a writer during the traversal, the next one won't see it
+                }
+            }
+            return null;
+        }
+    }
+}